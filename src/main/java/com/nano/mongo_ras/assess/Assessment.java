@@ -1,20 +1,16 @@
 package com.nano.mongo_ras.assess;
 
 import java.math.BigDecimal;
-import java.sql.Date;
 import java.sql.Timestamp;
-import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
-import javax.ejb.Asynchronous;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 
@@ -29,8 +25,14 @@ import com.nano.jpa.entity.ras.SmsMessage;
 import com.nano.jpa.entity.ras.SubscriberAssessment;
 import com.nano.jpa.enums.PayType;
 import com.nano.jpa.enums.SmsMessageId;
+import com.nano.mongo_ras.documents.DocumentBatch;
+import com.nano.mongo_ras.documents.TopUpHistory;
+import com.nano.mongo_ras.metrics.AllocationStats;
+import com.nano.mongo_ras.metrics.SweepStatistics;
+import com.nano.mongo_ras.metrics.TierSearchStats;
 import com.nano.mongo_ras.tools.ApplicationBean;
 import com.nano.mongo_ras.tools.DocumentManager;
+import com.nano.mongo_ras.tools.PropertiesManager;
 import com.nano.mongo_ras.tools.QueryManager;
 import com.nano.mongo_ras.tools.SingletonQueries;
 
@@ -51,20 +53,90 @@ public class Assessment {
 	@Inject
 	private ApplicationBean applicationBean;
 	
+	@Inject
+	private TierSearchStats tierSearchStats;
+	
+	@Inject
+	private AllocationStats allocationStats;
+	
+	@Inject
+	private RuleEngine ruleEngine;
+	
+	@Inject
+	private SweepStatistics sweepStatistics;
+	
+	@Inject
+	private AssessmentWriter assessmentWriter;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	private int maxMemoDays ;
+	
 	@PostConstruct
 	public void init(){
 		
 		if (applicationBean.getBorrowableAmounts() == null)
 			applicationBean.setBorrowableAmounts(qm.getBorrowableAmountListAsc());
+		
+		maxMemoDays = props.getInt("ras.memo.max.days", 7);
 	}
 
 	/**
-	 * Reassess {@link Subscriber} based on RAS criteria.
+	 * Distinct top-up durations of the loaded {@link BorrowableAmount} criteria.
+	 * History older than the widest duration is never read.
+	 * 
+	 * @return sorted durations in days
+	 */
+	public int[] getTopUpsDurations(){
+		
+		return applicationBean.getTopUpsDurations();
+	}
+
+	/**
+	 * Check whether {@link Subscriber} is due for (re)assessment.
 	 * 
 	 * @param subscriber subscriber details
+	 * @return true if subscriber has no assessment or was last assessed over ras.freshness.minutes ago
 	 */
-	@Asynchronous
-	public void reAssessment(Subscriber subscriber) {
+	public boolean isAssessmentDue(Subscriber subscriber){
+		
+		SubscriberAssessment subscriberAssessment = subscriber.getAssessment();
+		if (subscriberAssessment == null)
+			return true;
+		
+		long minutes = new Timestamp(subscriberAssessment.getLastProcessed().getTime()).toLocalDateTime().until(LocalDateTime.now(), ChronoUnit.MINUTES);
+		log.info("Time of last assessment:" + minutes);
+		
+		return minutes >= qm.getFreshnessMinutes();
+	}
+
+	/**
+	 * Check whether {@link Subscriber} top-up history can affect the assessment.
+	 * History is not needed when the known age on network is below what the lowest tier accepts.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param subscriberState SubscriberState document or null
+	 * @return false if subscriber fails age on network for every {@link BorrowableAmount}
+	 */
+	public boolean requiresTopUpHistory(Subscriber subscriber, 
+			Document subscriberState){
+		
+		java.util.Date activation = subscriber.getActivation();
+		if (activation == null)
+			activation = getFirstRechargeTime(subscriberState);
+		
+		return activation == null 
+				|| TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - activation.getTime()) >= ruleEngine.getMinAgeOnNetwork();
+	}
+
+	/**
+	 * Reassess {@link Subscriber} based on RAS criteria using pre-fetched documents.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param documentBatch documents pre-fetched for the subscribers page, null to fetch individually
+	 */
+	private void reAssessment(Subscriber subscriber, DocumentBatch documentBatch) {
 		// TODO Auto-generated method stub
 
 		StopWatch stopWatch = new StopWatch();
@@ -73,16 +145,15 @@ public class Assessment {
 		boolean eligible = false;
                 
 		SubscriberAssessment subscriberAssessment = subscriber.getAssessment();
-		long minutes = new Timestamp(subscriberAssessment.getLastProcessed().getTime()).toLocalDateTime().until(LocalDateTime.now(), ChronoUnit.MINUTES);
-		log.info("Time of last assessment:" + minutes);
-		if (minutes < 60L){
+		if (!isAssessmentDue(subscriber)){
 			stopWatch.stop();
 			return;
 		}
 
 		subscriberAssessment.setLastProcessed(Timestamp.valueOf(LocalDateTime.now()));
 
-		Document subscriberState = dm.getSubscriberStateByMsisdn(subscriber.getMsisdn());
+		Document subscriberState = documentBatch == null ? dm.getSubscriberStateByMsisdn(subscriber.getMsisdn()) 
+				: documentBatch.getSubscriberState(subscriber.getMsisdn());
 		if(subscriberState != null) {
 			Optional<PayType> optional = Arrays.stream(PayType.values())
 					.filter(e -> e.getDescription().equalsIgnoreCase(subscriberState.getString(com.nano.mongo_ras.documents.SubscriberState.pay_type.name())))
@@ -91,34 +162,27 @@ public class Assessment {
 			subscriberAssessment.setTariffPlan(payType);
 		}
 
-		List<Document> subscriberHistories = dm.getSubscriberHistoryByMsisdn(subscriber.getMsisdn());
-		if (subscriberHistories == null || subscriberHistories.isEmpty()){
+		if (!hasSubscriberHistory(subscriber, subscriberState, documentBatch)){
 			stopWatch.stop();
 			return;
 		}
 		
+		subscriberAssessment.setAgeOnNetwork(getDaysOnNetwork(subscriber, subscriberState));
+		
 		/*for (BorrowableAmount borrowableAmount : applicationBean.getBorrowableAmounts()) {
-			Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, subscriberHistories);
+			Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, topUpHistory);
 			subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
 			if ((boolean) map.get("eligible")){
 				eligible = true;
 				break;
 			}
 		}*/
-		int position = applicationBean.getAmountPosition()-1;
-		BorrowableAmount borrowableAmount = applicationBean.getBorrowableAmounts().get(position);
-		Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, subscriberHistories);
-		subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
+		int stableUntil = resolveBorrowableAmount(subscriber, subscriberAssessment, documentBatch);
+		eligible = subscriberAssessment.getMaxBorrowableAmount() != null;
+		log.debug("eligible:" + eligible);
 		
-		if ((boolean) map.get("eligible")){
-			eligible = borrowableAmountEligible(map, subscriberAssessment, position,  subscriberHistories, subscriber);
-		}
-		else{
-			eligible = borrowableAmountNotEligible(map, subscriberAssessment, position,  subscriberHistories, subscriber);
-		}
-		
-		if (!eligible)
-			sm.update(subscriberAssessment);
+		assessmentWriter.write(subscriberAssessment, 
+				documentBatch == null ? 0 : documentBatch.getInputFingerprint(subscriber.getMsisdn()), stableUntil);
 
 		if (subscriberState == null)
 			dm.createSubscriberState(subscriber.getMsisdn(), BigDecimal.ZERO);
@@ -128,12 +192,47 @@ public class Assessment {
 	}
 
 	/**
-	 * Perform first Subscriber assessment based on RAS criteria.
+	 * Assess {@link Subscriber} on the calling thread using pre-fetched documents, 
+	 * the evaluation stage of the {@link AssessmentPipeline}.
 	 * 
 	 * @param subscriber subscriber details
+	 * @param documentBatch documents pre-fetched for the subscribers chunk
 	 */
-	@Asynchronous
-	public void performFreshAssessment(Subscriber subscriber) {
+	public void assess(Subscriber subscriber, DocumentBatch documentBatch) {
+		
+		if (subscriber.getAssessment() == null)
+			performFreshAssessment(subscriber, documentBatch);
+		else
+			reAssessment(subscriber, documentBatch);
+	}
+
+	/**
+	 * Record {@link Subscriber} as reassessed without evaluating the criteria, 
+	 * used when the inputs of the stored assessment are unchanged and its outcome still holds.
+	 * Only last processed time and age on network advance, the outcome is written as is.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param subscriberState SubscriberState document or null
+	 * @param inputFingerprint {@link InputFingerprint} the stored assessment was computed from
+	 * @param stableUntil epoch day from which the stored outcome may change
+	 */
+	public void skipUnchanged(Subscriber subscriber, 
+			Document subscriberState, long inputFingerprint, int stableUntil) {
+		
+		SubscriberAssessment subscriberAssessment = subscriber.getAssessment();
+		subscriberAssessment.setLastProcessed(Timestamp.valueOf(LocalDateTime.now()));
+		subscriberAssessment.setAgeOnNetwork(getDaysOnNetwork(subscriber, subscriberState));
+		
+		assessmentWriter.write(subscriberAssessment, inputFingerprint, stableUntil);
+	}
+
+	/**
+	 * Perform first Subscriber assessment based on RAS criteria using pre-fetched documents.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param documentBatch documents pre-fetched for the subscribers page, null to fetch individually
+	 */
+	private void performFreshAssessment(Subscriber subscriber, DocumentBatch documentBatch) {
 		// TODO Auto-generated method stub
 
 		StopWatch stopWatch = new StopWatch();
@@ -141,22 +240,28 @@ public class Assessment {
 
 		boolean eligible = false;
         
-		Document subscriberState = dm.getSubscriberStateByMsisdn(subscriber.getMsisdn());
+		Document subscriberState = documentBatch == null ? dm.getSubscriberStateByMsisdn(subscriber.getMsisdn()) 
+				: documentBatch.getSubscriberState(subscriber.getMsisdn());
 		Optional<PayType> optional = Arrays.stream(PayType.values())
 				.filter(e -> e.getDescription().equalsIgnoreCase(subscriberState.getString(com.nano.mongo_ras.documents.SubscriberState.pay_type.name())))
 				.findFirst();
 		PayType payType = optional.orElse(PayType.PREPAID);
 		
-		SubscriberAssessment subscriberAssessment = sm.createNewAssessment(subscriber, payType);
+		SubscriberAssessment subscriberAssessment = assessmentWriter.isJdbcSink() ? sm.initializeAssessment(subscriber, payType) 
+				: sm.createNewAssessment(subscriber, payType);
 
-		List<Document> subscriberHistories = dm.getSubscriberHistoryByMsisdn(subscriber.getMsisdn());
-		if (subscriberHistories == null || subscriberHistories.isEmpty()){
+		if (!hasSubscriberHistory(subscriber, subscriberState, documentBatch)){
+			// fresh assessment row is still recorded so subscriber is not picked up again before it is due
+			if (assessmentWriter.isJdbcSink())
+				assessmentWriter.write(subscriberAssessment);
 			stopWatch.stop();
 			return;
 		}
+		
+		subscriberAssessment.setAgeOnNetwork(getDaysOnNetwork(subscriber, subscriberState));
 
 		/*for (BorrowableAmount borrowableAmount : applicationBean.getBorrowableAmounts()) {
-			Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, subscriberHistories);
+			Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, topUpHistory);
 			subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
 			if ((boolean) map.get("eligible")){
 				eligible = true;
@@ -164,21 +269,12 @@ public class Assessment {
 			}
 		}*/
 
-		int position = applicationBean.getAmountPosition()-1;
+		int stableUntil = resolveBorrowableAmount(subscriber, subscriberAssessment, documentBatch);
+		eligible = subscriberAssessment.getMaxBorrowableAmount() != null;
+		log.debug("eligible:" + eligible);
 		
-			BorrowableAmount borrowableAmount = applicationBean.getBorrowableAmounts().get(position);
-			Map<String, Object> map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, borrowableAmount, subscriberHistories);
-			subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
-			if ((boolean) map.get("eligible")){
-				eligible = borrowableAmountEligible(map, subscriberAssessment, position,  subscriberHistories, subscriber);
-			}
-			else{
-				eligible = borrowableAmountNotEligible(map, subscriberAssessment, position,  subscriberHistories, subscriber);
-			}
-		
-		
-		if (!eligible)
-			sm.updateWithNewTransaction(subscriberAssessment);
+		assessmentWriter.write(subscriberAssessment, 
+				documentBatch == null ? 0 : documentBatch.getInputFingerprint(subscriber.getMsisdn()), stableUntil);
 
 		if (subscriberState == null)
 			dm.createSubscriberState(subscriber.getMsisdn(), BigDecimal.ZERO);
@@ -188,87 +284,285 @@ public class Assessment {
 	}
 
 	/**
-	 * Determine if {@link Subscriber} is eligible for {@link BorrowableAmount} argument.
+	 * Resolve the highest {@link BorrowableAmount} {@link Subscriber} is eligible for.
+	 * The ascending ladder is treated as monotone, eligibility for a tier implies eligibility for every tier below it.
+	 * Search starts from the previous max borrowable amount (or the configured amount position) and gallops 
+	 * away from it before bisecting, so an unchanged tier costs two probes and a changed one O(log n).
+	 * Probes only return a verdict, assessment detail is collected once for the resolved tier, or the lowest tier if none passes.
 	 * 
 	 * @param subscriber subscriber details
 	 * @param subscriberAssessment subscribers assessment info
-	 * @param borrowableAmount configured amount which could be borrowed
-	 * @param subscriberHistories list of subscribers transactions
+	 * @param documentBatch documents pre-fetched for the subscribers page, null to fetch individually
+	 * @return epoch day from which the outcome may change without new top-ups, see {@link #getStableUntil}
+	 */
+	private int resolveBorrowableAmount(Subscriber subscriber, 
+			SubscriberAssessment subscriberAssessment, DocumentBatch documentBatch){
+		
+		EvaluationPlan[] plans = ruleEngine.getPlans();
+		int size = plans.length;
+		
+		if (size == 0)
+			return applicationBean.getSweepDay() + maxMemoDays;
+		
+		int start = getPosition(plans, subscriberAssessment.getMaxBorrowableAmount());
+		boolean warmStart = start >= 0;
+		if (!warmStart)
+			start = Math.max(0, Math.min(size - 1, applicationBean.getAmountPosition() - 1));
+		
+		long allocatedBytes = allocationStats.threadAllocatedBytes();
+		EvaluationContext context = EvaluationContext.open(subscriber, subscriberAssessment, 
+				getTopUpHistoryLoader(subscriber, documentBatch), plans, applicationBean.getSweepDay());
+		try {
+			// highest position known eligible (-1 for none) and lowest known not eligible (size for none)
+			int eligible = -1;
+			int notEligible = size;
+			
+			if (isEligible(context, start)){
+				eligible = start;
+				for (int step = 1; eligible + step < size; step <<= 1){
+					if (!isEligible(context, eligible + step)){
+						notEligible = eligible + step;
+						break;
+					}
+					eligible += step;
+				}
+			}
+			else{
+				notEligible = start;
+				for (int step = 1; notEligible - step >= 0; step <<= 1){
+					if (isEligible(context, notEligible - step)){
+						eligible = notEligible - step;
+						break;
+					}
+					notEligible -= step;
+				}
+			}
+			
+			while (notEligible - eligible > 1){
+				int mid = (eligible + notEligible) >>> 1;
+				if (isEligible(context, mid))
+					eligible = mid;
+				else
+					notEligible = mid;
+			}
+			
+			int resolved = Math.max(eligible, 0);
+			int failedCriteria = assessSubscriberEligibilityForAmount(context, context.beginTier(resolved));
+			
+			// subscribers covered by the pre-fetch were counted when it was read
+			if (documentBatch == null || !documentBatch.isTopUpHistoryFetched(subscriber.getMsisdn())) {
+				if (context.isTopUpHistoryLoaded())
+					sweepStatistics.recordHistoryReads(1);
+				else
+					sweepStatistics.recordHistoryReadsAvoided(1);
+			}
+			
+			allocationStats.record(allocatedBytes, context.getCriteriaEvaluations());
+			tierSearchStats.record(context.getTierEvaluations(), warmStart, warmStart && resolved == start);
+			
+			return getStableUntil(context, failedCriteria);
+		} finally {
+			context.close();
+		}
+	}
+	
+	/**
+	 * Earliest epoch day the outcome of an assessment can change while its inputs stay the same.
+	 * Age on network grows daily, so the outcome holds until the next tier age threshold is crossed 
+	 * and not at all while age fails since the message counts the days left. 
+	 * Top-ups leaving a duration window change the outcome on the day they leave it. 
+	 * Holds for at most ras.memo.max.days.
+	 * 
+	 * @param context evaluation context of subscriber
+	 * @param failedCriteria mask of failed {@link Criterion} of the resolved tier
+	 * @return exclusive epoch day, the sweep day if the outcome must be evaluated on every sweep
+	 */
+	private int getStableUntil(EvaluationContext context, int failedCriteria){
+		
+		int today = context.getSweepDay();
+		if (Criterion.AGE_ON_NETWORK.failed(failedCriteria))
+			return today;
+		
+		int stableUntil = today + maxMemoDays;
+		Integer ageOnNetwork = context.getSubscriberAssessment().getAgeOnNetwork();
+		int age = ageOnNetwork == null ? 0 : ageOnNetwork;
+		for (EvaluationPlan plan : context.getPlans()) {
+			if (plan.isEnabled(Criterion.AGE_ON_NETWORK) && plan.getMinAgeOnNetwork() > age)
+				stableUntil = Math.min(stableUntil, today + plan.getMinAgeOnNetwork() - age);
+		}
+		
+		if (context.isTopUpHistoryLoaded())
+			stableUntil = Math.min(stableUntil, context.getTopUpHistory().nextWindowExitDay(today, getTopUpsDurations()));
+		
+		return stableUntil;
+	}
+	
+	/**
+	 * Create loader of {@link Subscriber} top-ups, reading pre-fetched history when available.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param documentBatch documents pre-fetched for the subscribers page, null to fetch individually
+	 * @return top-up history loader
+	 */
+	private Supplier<TopUpHistory> getTopUpHistoryLoader(Subscriber subscriber, 
+			DocumentBatch documentBatch){
+		
+		String msisdn = subscriber.getMsisdn();
+		if (documentBatch != null && documentBatch.isTopUpHistoryFetched(msisdn))
+			return () -> documentBatch.getTopUpHistory(msisdn);
+		
+		return () -> dm.getTopUpHistoryByMsisdn(msisdn, getTopUpsDurations(), applicationBean.isAggregateTopUps());
+	}
+	
+	/**
+	 * Check whether {@link Subscriber} has any SubscriberHistory, subscribers without are not assessed.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param subscriberState SubscriberState document or null
+	 * @param documentBatch documents pre-fetched for the subscribers page, null to fetch individually
+	 * @return true if subscriber has recharged
+	 */
+	private boolean hasSubscriberHistory(Subscriber subscriber, 
+			Document subscriberState, DocumentBatch documentBatch){
+		
+		if (getFirstRechargeTime(subscriberState) != null)
+			return true;
+		
+		if (documentBatch != null && documentBatch.isSubscriberHistoryChecked())
+			return documentBatch.hasSubscriberHistory(subscriber.getMsisdn());
+		
+		return dm.hasSubscriberHistory(subscriber.getMsisdn());
+	}
+	
+	/**
+	 * Locate {@link BorrowableAmount} in the ladder by primary key, falling back to amount.
+	 * 
+	 * @param plans evaluation plans in ascending borrowable amount order
+	 * @param borrowableAmount amount to locate, may be null
+	 * @return position in the list or -1 if not found
+	 */
+	private int getPosition(EvaluationPlan[] plans, 
+			BorrowableAmount borrowableAmount){
+		
+		if (borrowableAmount == null)
+			return -1;
+		
+		for (int i = 0; i < plans.length; i++)
+			if (Objects.equals(plans[i].getBorrowableAmount().getPk(), borrowableAmount.getPk()))
+				return i;
+		
+		for (int i = 0; i < plans.length; i++)
+			if (Objects.equals(plans[i].getBorrowableAmount().getAmount(), borrowableAmount.getAmount()))
+				return i;
+		
+		return -1;
+	}
+	
+	/**
+	 * Probe tier at position, stopping at the first failed criterion.
+	 * 
+	 * @param context evaluation context of subscriber
+	 * @param position position in the list of plans
 	 * @return true if eligible
 	 */
-	private Map<String, Object> assessSubscriberEligibilityForAmount(Subscriber subscriber, 
-			SubscriberAssessment subscriberAssessment, BorrowableAmount borrowableAmount, 
-			List<Document> subscriberHistories){
-
-		boolean status = true;
-		subscriberAssessment = refreshSubscriberAssessment(subscriber, subscriberAssessment);
-		RasCriteria rasCriteria = borrowableAmount.getCriteria();
-
-		Map<String, Object> map = blacklistStatus(subscriberAssessment, status);
-		boolean blacklist = (boolean) map.get("eligible");
-
-		if (!blacklist)
-			status = false;
+	private boolean isEligible(EvaluationContext context, int position){
+		
+		return ruleEngine.passes(context, position);
+	}
 
-		map = tarrifPlan((SubscriberAssessment) map.get("subscriberAssessment"), status);
-		boolean tarrifPlan = (boolean) map.get("eligible");
+	/**
+	 * Determine if {@link Subscriber} is eligible for {@link BorrowableAmount} of plan, 
+	 * collecting counters, {@link SmsMessage} and max borrowable amount into the assessment.
+	 * Enabled criteria run in declaration order so the message reflects the last failure, 
+	 * top-up criteria are left out when a cheaper criterion failed before history was needed.
+	 * 
+	 * @param context evaluation context of subscriber
+	 * @param plan compiled plan of amount
+	 * @return mask of failed {@link Criterion}, 0 if eligible
+	 */
+	private int assessSubscriberEligibilityForAmount(EvaluationContext context, 
+			EvaluationPlan plan){
 
-		if (!tarrifPlan)
-			status = false;
+		refreshSubscriberAssessment(context.getSubscriberAssessment());
+		BorrowableAmount borrowableAmount = plan.getBorrowableAmount();
+		RasCriteria rasCriteria = borrowableAmount.getCriteria();
 
-		map = ageOnNetwork(subscriber, (SubscriberAssessment) map.get("subscriberAssessment"), 
-				rasCriteria, borrowableAmount, status);
-		boolean ageOnNetwork = (boolean) map.get("eligible");
+		if (plan.isEnabled(Criterion.BLACKLIST))
+			context.record(Criterion.BLACKLIST, blacklistStatus(context));
+		if (plan.isEnabled(Criterion.TARIFF_PLAN))
+			context.record(Criterion.TARIFF_PLAN, tarrifPlan(context));
+		if (plan.isEnabled(Criterion.AGE_ON_NETWORK))
+			context.record(Criterion.AGE_ON_NETWORK, ageOnNetwork(context, rasCriteria, borrowableAmount));
+		
+		// history is only loaded for detail when the verdict still depends on it
+		if (!context.isPassing() && !context.isTopUpHistoryLoaded())
+			return context.getFailedCriteria();
+		
+		if (plan.isEnabled(Criterion.TOPUP_COUNT))
+			context.record(Criterion.TOPUP_COUNT, numberOfTopupsForSpecifiedDuration(context, rasCriteria, borrowableAmount));
+		if (plan.isEnabled(Criterion.TOPUP_AMOUNT))
+			context.record(Criterion.TOPUP_AMOUNT, cumulativeTopupAmountForSpecifiedDuration(context, borrowableAmount, rasCriteria));
 
-		if (!ageOnNetwork)
-			status = false;
+		return context.getFailedCriteria();
+	}
 
-		map = numberOfTopupsForSpecifiedDuration((SubscriberAssessment) map.get("subscriberAssessment"), 
-				rasCriteria, borrowableAmount, subscriberHistories, status);
-		boolean numberOfTopUps = (boolean) map.get("eligible");
+	/**
+	 * Calculate {@link Subscriber} age on network once per assessment.
+	 * Falls back from activation date to the first_recharge_time kept in subscriber_state 
+	 * and finally to the earliest SubscriberHistory document. A date derived from history 
+	 * is written back so later sweeps never query for it again.
+	 * 
+	 * @param subscriber subscribers detail
+	 * @param subscriberState SubscriberState document or null
+	 * @return days on network
+	 */
+	private int getDaysOnNetwork(Subscriber subscriber, 
+			Document subscriberState){
 
-		if (!numberOfTopUps)
-			status = false;
+		java.util.Date activation = subscriber.getActivation();
+		if (activation == null)
+			activation = getFirstRechargeTime(subscriberState);
+		
+		if (activation == null){
+			activation = dm.getEarliestSubscriberHistoryTimeByMsisdn(subscriber.getMsisdn());
+			if (activation == null)
+				return 0;
+			
+			if (subscriberState != null)
+				dm.updateFirstRechargeTime(subscriber.getMsisdn(), activation);
+		}
+		
+		if (subscriber.getActivation() == null){
+			subscriber.setActivation(activation);
+			sm.updateWithNewTransaction(subscriber);
+		}
 
-		map = cumulativeTopupAmountForSpecifiedDuration((SubscriberAssessment) map.get("subscriberAssessment"), 
-				borrowableAmount, rasCriteria, subscriberHistories, status);
-		boolean topUpAmount = (boolean) map.get("eligible");
+		Long daysOnNetwork = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - activation.getTime());
+		log.debug("daysOnNetwork:" + daysOnNetwork);
 
-		if (blacklist 
-				&& tarrifPlan
-				&& ageOnNetwork
-				&& numberOfTopUps
-				&& topUpAmount){
-			sm.updateWithNewTransaction((SubscriberAssessment) map.get("subscriberAssessment"));
-			return initializeResponse(true, subscriberAssessment);
-		}
+		return daysOnNetwork.intValue();
+	}
 
-		return initializeResponse(false, subscriberAssessment);
+	/**
+	 * Read first_recharge_time from SubscriberState document.
+	 * 
+	 * @param subscriberState SubscriberState document or null
+	 * @return first recharge time or null
+	 */
+	private java.util.Date getFirstRechargeTime(Document subscriberState){
+		
+		return subscriberState == null ? null : subscriberState.getDate(com.nano.mongo_ras.documents.SubscriberState.first_recharge_time.name());
 	}
 
 	/**
 	 * Refresh SubscriberAssessment record in anticipation of new assessment.
+	 * Age on network is set once per subscriber before the tiers are evaluated.
 	 * 
-	 * @param subscriber subscribers detail
 	 * @param subscriberAssessment subscribers assessment info
 	 * @return {@link SubscriberAssessment}
 	 */
-	private SubscriberAssessment refreshSubscriberAssessment(Subscriber subscriber, 
-			SubscriberAssessment subscriberAssessment){
-
-		Long daysOnNetwork = 0L;
+	private SubscriberAssessment refreshSubscriberAssessment(SubscriberAssessment subscriberAssessment){
 
-		java.util.Date activation = subscriber.getActivation();
-		if (activation != null){
-			daysOnNetwork = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - activation.getTime());
-		}else{
-			Timestamp timestamp = dm.getEarliestSubscriberHistoryTimeByMsisdn(subscriber.getMsisdn());
-			daysOnNetwork = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - timestamp.getTime());
-		}
-
-		log.debug("daysOnNetwork:" + daysOnNetwork);
-
-		subscriberAssessment.setAgeOnNetwork(daysOnNetwork.intValue());
 		subscriberAssessment.setNumberOfTopUps(0);
 		subscriberAssessment.setTotalTopUpValue(0);
 
@@ -278,33 +572,25 @@ public class Assessment {
 	/**
 	 * Determine if {@link Subscriber} re-charge value meets required criteria for the {@link BorrowableAmount}.
 	 * 
-	 * @param subscriberAssessment subscribers assessment info
+	 * @param context evaluation context of subscriber
 	 * @param borrowableAmount configured amount which could be borrowed
 	 * @param rasCriteria criteria defined for amount
-	 * @param subscriberHistories subscribers transactions
-	 * @param status assessment status so far
 	 * @return true if {@link Subscriber} re-charge value satisfies minimum top-up value requirement
 	 */
-	private Map<String, Object> cumulativeTopupAmountForSpecifiedDuration(SubscriberAssessment subscriberAssessment, 
-			BorrowableAmount borrowableAmount, RasCriteria rasCriteria, 
-			List<Document> subscriberHistories, boolean status){
-		
-		if (!applicationBean.isAssessTopupAmount())
-			return initializeResponse(true, subscriberAssessment);
-
-		for (Document subscriberHistory : subscriberHistories) {
-			Long days = getDays((Timestamp) subscriberHistory.get(com.nano.mongo_ras.documents.SubscriberHistory.recharge_time.name()));
-			if(days <= rasCriteria.getMinTopUpsDuration())
-				subscriberAssessment.setTotalTopUpValue(subscriberAssessment.getTotalTopUpValue() + 
-						BigDecimal.valueOf(subscriberHistory.getDouble(com.nano.mongo_ras.documents.SubscriberHistory.recharge_for_prepaid.name())).multiply(BigDecimal.valueOf(100D)).intValue());
-		}
+	private boolean cumulativeTopupAmountForSpecifiedDuration(EvaluationContext context, 
+			BorrowableAmount borrowableAmount, RasCriteria rasCriteria){
+		
+		SubscriberAssessment subscriberAssessment = context.getSubscriberAssessment();
+		int totalTopUpValue = subscriberAssessment.getTotalTopUpValue() + 
+				(int) context.getTopUpHistory().sumTopUpsWithin(context.getSweepDay(), rasCriteria.getMinTopUpsDuration());
+		subscriberAssessment.setTotalTopUpValue(totalTopUpValue);
 
-		if(subscriberAssessment.getTotalTopUpValue().compareTo(rasCriteria.getMinTopUpValue()) >= 0){
-			if (status){
+		if(totalTopUpValue >= rasCriteria.getMinTopUpValue()){
+			if (context.isPassing()){
 				subscriberAssessment.setSmsMessage(null);
 				subscriberAssessment.setMaxBorrowableAmount(borrowableAmount);
 			}
-			return initializeResponse(true, subscriberAssessment);
+			return true;
 		}
 
 		SmsMessage smsMessage = getSmsMessage(subscriberAssessment);
@@ -316,38 +602,32 @@ public class Assessment {
 		subscriberAssessment.setMaxBorrowableAmount(null);
 		subscriberAssessment.setSmsMessage(smsMessage);
 
-		return initializeResponse(false, subscriberAssessment);
+		return false;
 	}
 
 	/**
 	 * Determine if {@link Subscriber} has recharged the required number of times for this {@link BorrowableAmount}.
 	 * 
-	 * @param subscriberAssessment subscribers assessment info
+	 * @param context evaluation context of subscriber
 	 * @param rasCriteria criteria defined for amount
 	 * @param borrowableAmount configured amount which could be borrowed
-	 * @param subscriberHistories subscribers transactions
-	 * @param status assessment status so far
 	 * @return true if {@link Subscriber} satisfies minimum number of top-ups requirement
 	 */
-	private Map<String, Object> numberOfTopupsForSpecifiedDuration(SubscriberAssessment subscriberAssessment, 
-			RasCriteria rasCriteria, BorrowableAmount borrowableAmount, 
-			List<Document> subscriberHistories, boolean status){
+	private boolean numberOfTopupsForSpecifiedDuration(EvaluationContext context, 
+			RasCriteria rasCriteria, BorrowableAmount borrowableAmount){
 		
-		if (!applicationBean.isAssessTopupFrequency())
-			return initializeResponse(true, subscriberAssessment);
-
-		for (Document subscriberHistory : subscriberHistories) {
-			Long days = getDays((Timestamp) subscriberHistory.get(com.nano.mongo_ras.documents.SubscriberHistory.recharge_time.name()));
-			if(days <= rasCriteria.getMinTopUpsDuration()) // gets top ups that happened with the specified days limit
-				subscriberAssessment.setNumberOfTopUps(subscriberAssessment.getNumberOfTopUps() + 1);
-		}
-
-		if(subscriberAssessment.getNumberOfTopUps().compareTo(rasCriteria.getMinTopUps()) >= 0){
-			if (status){
+		// gets top ups that happened with the specified days limit
+		SubscriberAssessment subscriberAssessment = context.getSubscriberAssessment();
+		int numberOfTopUps = subscriberAssessment.getNumberOfTopUps() + 
+				context.getTopUpHistory().countTopUpsWithin(context.getSweepDay(), rasCriteria.getMinTopUpsDuration());
+		subscriberAssessment.setNumberOfTopUps(numberOfTopUps);
+
+		if(numberOfTopUps >= rasCriteria.getMinTopUps()){
+			if (context.isPassing()){
 				subscriberAssessment.setSmsMessage(null);
 				subscriberAssessment.setMaxBorrowableAmount(borrowableAmount);
 			}
-			return initializeResponse(true, subscriberAssessment);
+			return true;
 		}
 
 		SmsMessage smsMessage = getSmsMessage(subscriberAssessment);
@@ -359,33 +639,27 @@ public class Assessment {
 		subscriberAssessment.setMaxBorrowableAmount(null);
 		subscriberAssessment.setSmsMessage(smsMessage);
 
-		return initializeResponse(false, subscriberAssessment);
+		return false;
 	}
 
 	/**
 	 * Determine if {@link Subscriber} has spent the required age on the network.
 	 * 
-	 * @param subscriber subscriber details
-	 * @param subscriberAssessment subscribers assessment info
+	 * @param context evaluation context of subscriber
 	 * @param rasCriteria criteria defined for amount
 	 * @param borrowableAmount configured amount which could be borrowed
-	 * @param status assessment status so far
 	 * @return true if {@link Subscriber} satisfies age on network requirement
 	 */
-	private Map<String, Object> ageOnNetwork(Subscriber subscriber, 
-			SubscriberAssessment subscriberAssessment, 
-			RasCriteria rasCriteria, BorrowableAmount borrowableAmount, 
-			boolean status){
+	private boolean ageOnNetwork(EvaluationContext context, 
+			RasCriteria rasCriteria, BorrowableAmount borrowableAmount){
 		
-		if (!applicationBean.isAssessAgeOnNetwork())
-			return initializeResponse(true, subscriberAssessment);
-
+		SubscriberAssessment subscriberAssessment = context.getSubscriberAssessment();
 		if(subscriberAssessment.getAgeOnNetwork().compareTo(rasCriteria.getMinAgeOnNetwork()) >= 0){
-			if (status){
+			if (context.isPassing()){
 				subscriberAssessment.setMaxBorrowableAmount(borrowableAmount);
 				subscriberAssessment.setSmsMessage(null);
 			}
-			return initializeResponse(true, subscriberAssessment);
+			return true;
 		}
 
 		SmsMessage smsMessage = getSmsMessage(subscriberAssessment);
@@ -396,56 +670,29 @@ public class Assessment {
 		subscriberAssessment.setMaxBorrowableAmount(null);
 		subscriberAssessment.setSmsMessage(smsMessage);
 
-		return initializeResponse(false, subscriberAssessment);
+		return false;
 	}
 
 	/**
 	 * Confirm {@link Subscriber} blacklist status on the network.
 	 * 
-	 * @param subscriberAssessment subscribers assessment info
-	 * @param status assessment status so far
+	 * @param context evaluation context of subscriber
 	 * @return true if {@link Subscriber} is not black listed
 	 */
-	private Map<String, Object> blacklistStatus(SubscriberAssessment subscriberAssessment, 
-			boolean status){
-
-		if (!applicationBean.isAssessBlacklistStatus())
-			return initializeResponse(true, subscriberAssessment);
+	private boolean blacklistStatus(EvaluationContext context){
 		
-		return initializeResponse(true, subscriberAssessment);
+		return true;
 	}
 
 	/**
 	 * Confirm {@link Subscriber} tarrifPlan conforms to expected criteria.
 	 * 
-	 * @param subscriberAssessment subscribers assessment info
-	 * @param status assessment status so far
+	 * @param context evaluation context of subscriber
 	 * @return true if {@link Subscriber} tariff plan satisfies criteria requirement
 	 */
-	private Map<String, Object> tarrifPlan(SubscriberAssessment subscriberAssessment, 
-			boolean status){
-
-		if (!applicationBean.isAssessTarrifplan())
-			return initializeResponse(true, subscriberAssessment);
+	private boolean tarrifPlan(EvaluationContext context){
 		
-		return initializeResponse(true, subscriberAssessment);
-	}
-
-	/**
-	 * Create response for Assessment APIs.
-	 * 
-	 * @param eligible eligibility status
-	 * @param subscriberAssessment subscribers assessment info
-	 * @return Map containing eligibility status and updated {@link SubscriberAssessment}
-	 */
-	private Map<String, Object> initializeResponse(Boolean eligible, 
-			SubscriberAssessment subscriberAssessment){
-
-		Map<String, Object> map = new HashMap<>();
-		map.put("eligible", eligible);
-		map.put("subscriberAssessment", subscriberAssessment);
-
-		return map;
+		return true;
 	}
 
 	/**
@@ -458,72 +705,4 @@ public class Assessment {
 
 		return subscriberAssessment.getSmsMessage() == null ? new SmsMessage() : subscriberAssessment.getSmsMessage();
 	}
-
-	/**
-	 * Calculate number of days between rechargeTime day and today.
-	 * 
-	 * @param rechargeTime recharge time
-	 * @return long
-	 */
-	protected Long getDays(Timestamp rechargeTime){
-
-		return ChronoUnit.DAYS.between(new Date(rechargeTime.getTime()).toLocalDate(), LocalDate.now());
-		//return TimeUnit.MILLISECONDS.toDays(rechargeTime.getTime() - subscriberAssessment.getAssessmentInitTime().getTime());
-	}
-	
-	/**
-	 * Checks {@link Subscriber} eligibility for borrowable amount(s) upwards of the threshold amount
-	 * 
-	 * @param Map containing eligibility status and updated {@link SubscriberAssessment}
-	 * @param subscriberAssessment subscribers assessment info
-	 * @param threshold position in the list of borrowableAmounts
-	 * @param subscriberHistories subscribers transactions
-	 * @param subscriber subscriber details
-	 * @return eligibility  for highest eligible value
-	 */
-	
-	private Boolean borrowableAmountEligible(Map<String, Object> map, SubscriberAssessment subscriberAssessment, 
-			int position, List<Document> subscriberHistories,Subscriber subscriber){
-		Boolean eligible = true;
-			for(int i=(position+1); i<applicationBean.getBorrowableAmounts().size();i++){
-				map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, applicationBean.getBorrowableAmounts().get(i), subscriberHistories);
-				subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
-				if ((boolean) map.get("eligible")){
-					eligible = true;
-					continue;
-				}
-				else{
-					break;
-				}
-			}
-		return eligible;
-	}
-	
-	/**
-	 * Checks {@link Subscriber} eligibility for borrowable amount(s) downwards of the threshold amount
-	 * 
-	 * @param Map containing eligibility status and updated {@link SubscriberAssessment}
-	 * @param subscriberAssessment subscribers assessment info
-	 * @param threshold position in the list of borrowableAmounts
-	 * @param subscriberHistories subscribers transactions
-	 * @param subscriber subscriber details
-	 * @return eligibility status for highest possible borrowable amount lower than the threshold amount 
-	 */
-	
-	private Boolean borrowableAmountNotEligible(Map<String, Object> map, 
-			SubscriberAssessment subscriberAssessment, int position, List<Document> subscriberHistories,Subscriber subscriber){	
-	    Boolean eligible = false;
-		for(int i=(position-1); i>=0; i--){
-			map = assessSubscriberEligibilityForAmount(subscriber, subscriberAssessment, applicationBean.getBorrowableAmounts().get(i), subscriberHistories);
-			subscriberAssessment = (SubscriberAssessment) map.get("subscriberAssessment");
-			if ((boolean) map.get("eligible")){
-				eligible = true;
-				break;
-			}
-			else{
-				continue;
-			}
-		}
-		return eligible;
-	}
 }
\ No newline at end of file
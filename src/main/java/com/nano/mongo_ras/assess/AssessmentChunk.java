@@ -0,0 +1,37 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.List;
+
+import com.nano.jpa.entity.Subscriber;
+import com.nano.mongo_ras.documents.DocumentBatch;
+
+/**
+ * Subscribers of a chunk due for evaluation along with the documents pre-fetched for them.
+ * 
+ */
+public class AssessmentChunk {
+	
+	private final List<Subscriber> subscribers ;
+	
+	private final DocumentBatch documentBatch ;
+
+	/**
+	 * @param subscribers subscribers due for evaluation
+	 * @param documentBatch documents pre-fetched for the subscribers
+	 */
+	public AssessmentChunk(List<Subscriber> subscribers, 
+			DocumentBatch documentBatch) {
+		
+		this.subscribers = subscribers;
+		this.documentBatch = documentBatch;
+	}
+	
+	public List<Subscriber> getSubscribers() {
+		return subscribers;
+	}
+	
+	public DocumentBatch getDocumentBatch() {
+		return documentBatch;
+	}
+
+}
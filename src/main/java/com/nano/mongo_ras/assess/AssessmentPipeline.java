@@ -0,0 +1,159 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import com.nano.jpa.entity.Subscriber;
+import com.nano.mongo_ras.metrics.AllocationStats;
+import com.nano.mongo_ras.metrics.EvaluationModeStats;
+import com.nano.mongo_ras.metrics.SweepStatistics;
+import com.nano.mongo_ras.metrics.TierSearchStats;
+import com.nano.mongo_ras.metrics.WriteBehindStats;
+import com.nano.mongo_ras.tools.PropertiesManager;
+
+/**
+ * Staged assessment pipeline: MSISDN source, Mongo fetch, evaluation and persistence.
+ * Each stage is a {@link PipelineStage} with its own threads and bounded queue, so a full downstream queue 
+ * blocks the stage feeding it and ultimately the page source.
+ * <ul>
+ * <li>fetch - ras.pipeline.fetch.threads (2) threads, ras.pipeline.fetch.queue (2) chunks of ras.prefetch.chunk.size MSISDNs</li>
+ * <li>evaluate - ras.pipeline.evaluate.threads (16) threads, ras.pipeline.evaluate.queue (2000) subscribers</li>
+ * <li>persist - see {@link AssessmentWriter}</li>
+ * </ul>
+ * Work is tracked per submitter by an {@link InFlight}, so concurrent sweeps, partitions or leases 
+ * sharing the stages each wait only for their own subscribers at a checkpoint.
+ * Stage depth and utilisation are exposed through {@link SweepStatistics}.
+ * 
+ */
+@ApplicationScoped
+public class AssessmentPipeline {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	@Inject
+	private RasProcessor rasProcessor ;
+	
+	@Inject
+	private Assessment assessment ;
+	
+	@Inject
+	private AssessmentWriter assessmentWriter ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Inject
+	private EvaluationModeStats evaluationModeStats ;
+	
+	@Inject
+	private TierSearchStats tierSearchStats ;
+	
+	@Inject
+	private AllocationStats allocationStats ;
+	
+	@Inject
+	private WriteBehindStats writeBehindStats ;
+	
+	@Inject
+	private SweepStatistics sweepStatistics ;
+	
+	@Resource
+	private ManagedThreadFactory managedThreadFactory;
+	
+	private PipelineStage fetchStage ;
+	
+	private PipelineStage evaluateStage ;
+	
+	private int chunkSize ;
+	
+	@PostConstruct
+	public void init(){
+		
+		chunkSize = props.getInt("ras.prefetch.chunk.size", 1000);
+		fetchStage = new PipelineStage("fetch", props.getInt("ras.pipeline.fetch.threads", 2), 
+				props.getInt("ras.pipeline.fetch.queue", 2), managedThreadFactory);
+		evaluateStage = new PipelineStage("evaluate", props.getInt("ras.pipeline.evaluate.threads", 16), 
+				props.getInt("ras.pipeline.evaluate.queue", 2000), managedThreadFactory);
+		sweepStatistics.registerStage(fetchStage.getName(), fetchStage::getDepth, fetchStage::getUtilisation);
+		sweepStatistics.registerStage(evaluateStage.getName(), evaluateStage::getDepth, evaluateStage::getUtilisation);
+	}
+	
+	@PreDestroy
+	public void close(){
+		
+		fetchStage.shutdown();
+		evaluateStage.shutdown();
+	}
+	
+	/**
+	 * Reset stage statistics for a new sweep.
+	 */
+	public void start(){
+		
+		fetchStage.start();
+		evaluateStage.start();
+		assessmentWriter.getPersistStage().start();
+	}
+	
+	/**
+	 * Feed a page of MSISDNs into the pipeline in chunks, blocking while the fetch stage is full.
+	 * 
+	 * @param msisdns subscriber MSISDNs due for assessment
+	 * @param inFlight work of the submitter
+	 */
+	public void submit(List<String> msisdns, InFlight inFlight){
+		
+		for (int i = 0; i < msisdns.size(); i += chunkSize){
+			List<String> chunk = new ArrayList<>(msisdns.subList(i, Math.min(msisdns.size(), i + chunkSize)));
+			inFlight.submit(fetchStage, () -> fetch(chunk, inFlight));
+		}
+	}
+	
+	/**
+	 * Wait until every MSISDN of the submitter is assessed and written, 
+	 * work of other submitters still in the stages is not waited for.
+	 * 
+	 * @param inFlight work of the submitter
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitIdle(InFlight inFlight) throws InterruptedException {
+		
+		inFlight.awaitTasks();
+		assessmentWriter.awaitIdle(inFlight);
+	}
+	
+	/**
+	 * Log assessment statistics of the sweep.
+	 */
+	public void logStatistics(){
+		
+		log.info("pipeline - " + this);
+		log.info("top-up fetch by evaluation mode - " + evaluationModeStats);
+		log.info("tier resolution - " + tierSearchStats);
+		log.info("criteria evaluation allocation - " + allocationStats);
+		log.info("assessment writes - " + writeBehindStats);
+	}
+	
+	private void fetch(List<String> msisdns, 
+			InFlight inFlight){
+		
+		AssessmentChunk assessmentChunk = rasProcessor.prepare(msisdns);
+		for (Subscriber subscriber : assessmentChunk.getSubscribers())
+			inFlight.submit(evaluateStage, () -> assessment.assess(subscriber, assessmentChunk.getDocumentBatch()));
+	}
+	
+	@Override
+	public String toString() {
+		return fetchStage + "; " + evaluateStage + "; " + assessmentWriter.getPersistStage();
+	}
+
+}
@@ -0,0 +1,290 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import lombok.AllArgsConstructor;
+
+import com.nano.jpa.entity.ras.SubscriberAssessment;
+import com.nano.mongo_ras.metrics.SweepStatistics;
+import com.nano.mongo_ras.metrics.WriteBehindStats;
+import com.nano.mongo_ras.tools.BatchQueries;
+import com.nano.mongo_ras.tools.PropertiesManager;
+import com.nano.mongo_ras.tools.SingletonQueries;
+
+/**
+ * Write-behind buffer of final {@link SubscriberAssessment} states, written in one transaction per batch.
+ * A batch is written once it reaches ras.write.batch.size subscribers or ras.write.flush.interval.seconds elapse, 
+ * as entity merges in both sinks so outcome changes stay audited.
+ * With ras.write.sink jdbc, assessments whose {@link OutcomeFingerprint} is unchanged are not merged, 
+ * only their last processed time is advanced by one JDBC update.
+ * Batches are written by the persist {@link PipelineStage}, ras.write.max.inflight at once with up to ras.write.queue.batches 
+ * waiting, assessing threads wait for room when writes fall behind.
+ * 
+ */
+@ApplicationScoped
+public class AssessmentWriter {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	@Inject
+	private SingletonQueries sm ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Inject
+	private SweepStatistics sweepStatistics ;
+	
+	@Inject
+	private WriteBehindStats writeBehindStats ;
+	
+	@Inject
+	private BatchQueries batchQueries ;
+	
+	@Resource
+	private ManagedScheduledExecutorService managedScheduledExecutorService;
+	
+	@Resource
+	private ManagedThreadFactory managedThreadFactory;
+	
+	private ScheduledFuture<?> flusher ;
+	
+	private int batchSize ;
+	
+	private boolean jdbcSink ;
+	
+	private PipelineStage persistStage ;
+	
+	// keyed by MSISDN so a subscriber assessed twice before a flush is written once
+	private Map<String, PendingWrite> buffer = new LinkedHashMap<>();
+	
+	@PostConstruct
+	public void init(){
+		
+		batchSize = props.getInt("ras.write.batch.size", 500);
+		persistStage = new PipelineStage("persist", props.getInt("ras.write.max.inflight", 2), 
+				props.getInt("ras.write.queue.batches", 2), managedThreadFactory);
+		sweepStatistics.registerStage(persistStage.getName(), persistStage::getDepth, persistStage::getUtilisation);
+		jdbcSink = props.getProperty("ras.write.sink", "jdbc").equalsIgnoreCase("jdbc") 
+				&& batchQueries.ensureAssessmentSchema();
+		log.info("assessment sink:" + (jdbcSink ? "jdbc" : "jpa"));
+		
+		int flushInterval = props.getInt("ras.write.flush.interval.seconds", 5);
+		flusher = managedScheduledExecutorService.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+	}
+	
+	@PreDestroy
+	public void close(){
+		
+		if (flusher != null)
+			flusher.cancel(false);
+		
+		try {
+			awaitIdle();
+		} catch (InterruptedException e) {
+			log.error("Interrupted writing buffered assessments", e);
+			Thread.currentThread().interrupt();
+		}
+		persistStage.shutdown();
+	}
+	
+	/**
+	 * Whether assessments are written through JDBC, new assessments then need not be persisted before they are written.
+	 * 
+	 * @return true if JDBC sink is active
+	 */
+	public boolean isJdbcSink(){
+		return jdbcSink;
+	}
+	
+	/**
+	 * Queue final assessment state of a subscriber, writing the batch when full.
+	 * 
+	 * @param subscriberAssessment subscribers assessment info
+	 */
+	public void write(SubscriberAssessment subscriberAssessment){
+		write(subscriberAssessment, 0, 0);
+	}
+	
+	/**
+	 * Queue final assessment state of a subscriber along with the inputs it was computed from, 
+	 * writing the batch when full.
+	 * 
+	 * @param subscriberAssessment subscribers assessment info
+	 * @param inputFingerprint {@link InputFingerprint} of the assessment inputs, 0 if not computed
+	 * @param stableUntil epoch day from which the outcome may change without new input
+	 */
+	public void write(SubscriberAssessment subscriberAssessment, long inputFingerprint, int stableUntil){
+		
+		InFlight inFlight = InFlight.current();
+		if (inFlight != null)
+			inFlight.buffered();
+		
+		List<PendingWrite> batch = null;
+		PendingWrite replaced;
+		synchronized (this) {
+			replaced = buffer.put(subscriberAssessment.getSubscriber().getMsisdn(), 
+					new PendingWrite(subscriberAssessment, inputFingerprint, stableUntil, inFlight));
+			writeBehindStats.recordBuffered(buffer.size());
+			if (buffer.size() >= batchSize)
+				batch = drain();
+		}
+		
+		if (replaced != null)
+			replaced.written();
+		if (batch != null)
+			write(batch);
+	}
+	
+	/**
+	 * Flush buffered assessments and wait until every queued batch is written.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitIdle() throws InterruptedException {
+		
+		flush();
+		persistStage.awaitIdle();
+	}
+	
+	/**
+	 * Flush buffered assessments and wait until those of one submitter are written, 
+	 * batches holding only other submitters' assessments are not waited for.
+	 * 
+	 * @param inFlight work of the submitter, whose tasks have all run
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitIdle(InFlight inFlight) throws InterruptedException {
+		
+		flush();
+		inFlight.awaitWrites();
+	}
+	
+	/**
+	 * @return persist stage writing batches
+	 */
+	public PipelineStage getPersistStage(){
+		return persistStage;
+	}
+	
+	/**
+	 * Queue all buffered assessments for writing.
+	 */
+	public void flush(){
+		
+		List<PendingWrite> batch;
+		synchronized (this) {
+			batch = drain();
+		}
+		
+		if (!batch.isEmpty())
+			write(batch);
+	}
+	
+	private List<PendingWrite> drain(){
+		
+		List<PendingWrite> batch = new ArrayList<>(buffer.values());
+		buffer = new LinkedHashMap<>();
+		
+		return batch;
+	}
+	
+	private void write(List<PendingWrite> pending){
+		
+		try {
+			persistStage.submit(() -> writeBatch(pending));
+		} catch (RejectedExecutionException e) {
+			pending.forEach(PendingWrite::written);
+			throw e;
+		}
+	}
+	
+	private void writeBatch(List<PendingWrite> pending){
+		
+		List<SubscriberAssessment> batch = new ArrayList<>(pending.size());
+		for (PendingWrite pendingWrite : pending)
+			batch.add(pendingWrite.subscriberAssessment);
+		
+		try {
+			writeBatch(pending, batch);
+		} finally {
+			pending.forEach(PendingWrite::written);
+		}
+	}
+	
+	private void writeBatch(List<PendingWrite> pending, 
+			List<SubscriberAssessment> batch){
+		
+		try {
+			long start = System.nanoTime();
+			int changed = batch.size();
+			if (jdbcSink){
+				long[] fingerprints = new long[batch.size()];
+				long[] inputFingerprints = new long[batch.size()];
+				int[] stableUntil = new int[batch.size()];
+				for (int i = 0; i < fingerprints.length; i++){
+					fingerprints[i] = OutcomeFingerprint.of(batch.get(i));
+					inputFingerprints[i] = pending.get(i).inputFingerprint;
+					stableUntil[i] = pending.get(i).stableUntil;
+				}
+				changed = batchQueries.writeAssessments(batch, fingerprints, inputFingerprints, stableUntil);
+			}
+			else{
+				sm.updateAll(batch);
+			}
+			writeBehindStats.recordFlush(batch.size(), System.nanoTime() - start);
+			sweepStatistics.recordWrites(batch.size(), 1);
+			sweepStatistics.recordOutcomes(changed, batch.size());
+		} catch (Exception e) {
+			log.error("batch write of " + batch.size() + " assessments failed, writing individually", e);
+			writeBehindStats.recordFailure();
+			
+			for (SubscriberAssessment subscriberAssessment : batch) {
+				try {
+					if (jdbcSink)
+						batchQueries.writeAssessment(subscriberAssessment);
+					else
+						sm.updateWithNewTransaction(subscriberAssessment);
+					sweepStatistics.recordWrites(1, 1);
+					sweepStatistics.recordOutcomes(1, 1);
+				} catch (Exception ex) {
+					log.error("Unable to write assessment for subscriber:" + subscriberAssessment.getSubscriber().getMsisdn(), ex);
+				}
+			}
+		}
+	}
+	
+	@AllArgsConstructor
+	private static class PendingWrite {
+		
+		private final SubscriberAssessment subscriberAssessment ;
+		
+		private final long inputFingerprint ;
+		
+		private final int stableUntil ;
+		
+		private final InFlight inFlight ;
+		
+		private void written(){
+			
+			if (inFlight != null)
+				inFlight.written();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.nano.mongo_ras.assess;
+
+/**
+ * RAS criteria checked for every {@link com.nano.jpa.entity.ras.BorrowableAmount}.
+ * Failed criteria of a tier are reported as a bitmask of {@link #mask()} values, 0 meaning eligible.
+ * Declaration order is the order full assessment detail is collected in.
+ * 
+ */
+public enum Criterion {
+	
+	BLACKLIST(1, false),
+	TARIFF_PLAN(1, false),
+	AGE_ON_NETWORK(1, false),
+	TOPUP_COUNT(4, true),
+	TOPUP_AMOUNT(4, true);
+	
+	private final int cost;
+	private final boolean historyBased;
+	
+	private Criterion(int cost, boolean historyBased) {
+		this.cost = cost;
+		this.historyBased = historyBased;
+	}
+	
+	/**
+	 * Relative cost of evaluating criterion, top-up criteria search the recharge series.
+	 * 
+	 * @return cost
+	 */
+	public int getCost() {
+		return cost;
+	}
+	
+	/**
+	 * Whether criterion needs the subscribers top-up history, which is loaded from mongo on demand.
+	 * 
+	 * @return true if criterion reads top-up history
+	 */
+	public boolean isHistoryBased() {
+		return historyBased;
+	}
+	
+	/**
+	 * Bit representing this criterion in a failed criteria mask.
+	 * 
+	 * @return criterion bit
+	 */
+	public int mask(){
+		return 1 << ordinal();
+	}
+	
+	/**
+	 * Check whether criterion failed.
+	 * 
+	 * @param failedCriteria failed criteria mask
+	 * @return true if criterion bit is set
+	 */
+	public boolean failed(int failedCriteria){
+		return (failedCriteria & mask()) != 0;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.function.Supplier;
+
+import com.nano.jpa.entity.Subscriber;
+import com.nano.jpa.entity.ras.SubscriberAssessment;
+import com.nano.mongo_ras.documents.TopUpHistory;
+
+import lombok.Getter;
+
+/**
+ * Mutable state of a single {@link Subscriber} tier resolution.
+ * One instance is kept per thread and reset for every subscriber so criteria evaluation allocates no result objects.
+ * Top-up history is loaded on first use by a history based {@link Criterion}.
+ * 
+ */
+@Getter
+class EvaluationContext {
+	
+	private static final ThreadLocal<EvaluationContext> CURRENT = ThreadLocal.withInitial(EvaluationContext::new);
+	
+	private Subscriber subscriber;
+	private SubscriberAssessment subscriberAssessment;
+	private TopUpHistory topUpHistory;
+	private Supplier<TopUpHistory> topUpHistoryLoader;
+	private EvaluationPlan[] plans;
+	private int sweepDay;
+	
+	private int failedCriteria;
+	private int tierEvaluations;
+	private int criteriaEvaluations;
+	
+	private EvaluationContext() {
+	}
+	
+	/**
+	 * Fetch context of current thread reset for {@link Subscriber}.
+	 * 
+	 * @param subscriber subscriber details
+	 * @param subscriberAssessment subscribers assessment info
+	 * @param topUpHistoryLoader loads subscribers top-ups on first use
+	 * @param plans evaluation plans in ascending borrowable amount order
+	 * @param sweepDay epoch day top-up windows end on
+	 * @return {@link EvaluationContext}
+	 */
+	static EvaluationContext open(Subscriber subscriber, SubscriberAssessment subscriberAssessment, 
+			Supplier<TopUpHistory> topUpHistoryLoader, EvaluationPlan[] plans, int sweepDay){
+		
+		EvaluationContext context = CURRENT.get();
+		context.subscriber = subscriber;
+		context.subscriberAssessment = subscriberAssessment;
+		context.topUpHistory = null;
+		context.topUpHistoryLoader = topUpHistoryLoader;
+		context.plans = plans;
+		context.sweepDay = sweepDay;
+		context.failedCriteria = 0;
+		context.tierEvaluations = 0;
+		context.criteriaEvaluations = 0;
+		
+		return context;
+	}
+	
+	/**
+	 * Release references held for the last {@link Subscriber} so pooled threads do not retain them.
+	 */
+	void close(){
+		
+		subscriber = null;
+		subscriberAssessment = null;
+		topUpHistory = null;
+		topUpHistoryLoader = null;
+		plans = null;
+	}
+	
+	/**
+	 * Fetch subscribers top-ups, loading them on first call.
+	 * 
+	 * @return {@link TopUpHistory}
+	 */
+	TopUpHistory getTopUpHistory(){
+		
+		if (topUpHistory == null)
+			topUpHistory = topUpHistoryLoader.get();
+		
+		return topUpHistory;
+	}
+	
+	/**
+	 * @return true if top-up history has been loaded
+	 */
+	boolean isTopUpHistoryLoaded(){
+		return topUpHistory != null;
+	}
+	
+	/**
+	 * Start evaluation of tier at position.
+	 * 
+	 * @param position position in the list of plans
+	 * @return {@link EvaluationPlan} at position
+	 */
+	EvaluationPlan beginTier(int position){
+		
+		tierEvaluations++;
+		failedCriteria = 0;
+		
+		return plans[position];
+	}
+	
+	/**
+	 * Record outcome of a criterion for the current tier.
+	 * 
+	 * @param criterion criterion evaluated
+	 * @param passed true if criterion passed
+	 */
+	void record(Criterion criterion, boolean passed){
+		
+		criteriaEvaluations++;
+		if (!passed)
+			failedCriteria |= criterion.mask();
+	}
+	
+	/**
+	 * @return true if no criterion of the current tier has failed so far
+	 */
+	boolean isPassing(){
+		return failedCriteria == 0;
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.Arrays;
+
+import com.nano.jpa.entity.ras.BorrowableAmount;
+import com.nano.jpa.entity.ras.RasCriteria;
+import com.nano.mongo_ras.metrics.CriterionStats;
+
+/**
+ * Immutable {@link RasCriteria} of a {@link BorrowableAmount} compiled with the enabled assessment toggles.
+ * Enabled criteria are held cheapest and most selective first so a pass/fail probe stops at the first rejection, 
+ * criteria reading top-up history always come last so history is only loaded when it can change the verdict.
+ * 
+ */
+public final class EvaluationPlan {
+	
+	private final BorrowableAmount borrowableAmount;
+	private final int enabledCriteria;
+	private final Criterion[] predicates;
+	
+	private final int minAgeOnNetwork;
+	private final int minTopUps;
+	private final int minTopUpValue;
+	private final int minTopUpsDuration;
+	
+	/**
+	 * @param borrowableAmount configured amount which could be borrowed
+	 * @param enabledCriteria mask of enabled {@link Criterion}
+	 * @param predicates enabled criteria in probe order
+	 */
+	EvaluationPlan(BorrowableAmount borrowableAmount, 
+			int enabledCriteria, Criterion[] predicates) {
+		
+		RasCriteria rasCriteria = borrowableAmount.getCriteria();
+		
+		this.borrowableAmount = borrowableAmount;
+		this.enabledCriteria = enabledCriteria;
+		this.predicates = predicates.clone();
+		this.minAgeOnNetwork = valueOf(rasCriteria.getMinAgeOnNetwork());
+		this.minTopUps = valueOf(rasCriteria.getMinTopUps());
+		this.minTopUpValue = valueOf(rasCriteria.getMinTopUpValue());
+		this.minTopUpsDuration = valueOf(rasCriteria.getMinTopUpsDuration());
+	}
+	
+	public BorrowableAmount getBorrowableAmount() {
+		return borrowableAmount;
+	}
+	
+	public int getMinAgeOnNetwork() {
+		return minAgeOnNetwork;
+	}
+	
+	/**
+	 * @param criterion criterion
+	 * @return true if criterion is assessed
+	 */
+	public boolean isEnabled(Criterion criterion){
+		return (enabledCriteria & criterion.mask()) != 0;
+	}
+	
+	/**
+	 * Probe {@link com.nano.jpa.entity.Subscriber} eligibility without collecting assessment detail.
+	 * 
+	 * @param context evaluation context of subscriber
+	 * @param criterionStats rejection statistics to update
+	 * @return true if every enabled criterion passes
+	 */
+	boolean passes(EvaluationContext context, CriterionStats criterionStats){
+		
+		for (Criterion criterion : predicates){
+			boolean passed = test(criterion, context);
+			context.record(criterion, passed);
+			criterionStats.record(criterion, passed);
+			if (!passed)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	private boolean test(Criterion criterion, EvaluationContext context){
+		
+		switch (criterion) {
+		case AGE_ON_NETWORK:
+			return context.getSubscriberAssessment().getAgeOnNetwork() >= minAgeOnNetwork;
+		case TOPUP_COUNT:
+			return context.getTopUpHistory().countTopUpsWithin(context.getSweepDay(), minTopUpsDuration) >= minTopUps;
+		case TOPUP_AMOUNT:
+			return (int) context.getTopUpHistory().sumTopUpsWithin(context.getSweepDay(), minTopUpsDuration) >= minTopUpValue;
+		case BLACKLIST:
+		case TARIFF_PLAN:
+		default:
+			return true;
+		}
+	}
+	
+	private static int valueOf(Integer value){
+		return value == null ? 0 : value;
+	}
+	
+	@Override
+	public String toString() {
+		return borrowableAmount.getAmount() + " " + Arrays.toString(predicates);
+	}
+
+}
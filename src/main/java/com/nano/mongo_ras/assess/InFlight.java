@@ -0,0 +1,116 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work one submitter of the {@link AssessmentPipeline} has in flight, a sweep, batch chunk or lease, 
+ * so each waits only for its own subscribers to be assessed and written rather than for the shared stages to drain.
+ * Stage tasks are counted from submission until they ran, assessments they queue on the {@link AssessmentWriter} 
+ * are attributed through the running thread and counted until their batch is written.
+ * 
+ */
+public class InFlight {
+	
+	private static final ThreadLocal<InFlight> CURRENT = new ThreadLocal<>();
+	
+	private final AtomicLong tasks = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	
+	/**
+	 * @return submitter of the task running on this thread, null outside a tracked task
+	 */
+	static InFlight current(){
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Run a task on this thread, attributing assessments it writes to this submitter.
+	 * 
+	 * @param task task to run
+	 */
+	public void run(Runnable task){
+		
+		InFlight previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			task.run();
+		} finally {
+			if (previous == null)
+				CURRENT.remove();
+			else
+				CURRENT.set(previous);
+		}
+	}
+	
+	/**
+	 * Queue a task on a stage, counted in flight until it ran.
+	 * 
+	 * @param stage stage to run the task
+	 * @param task stage task
+	 */
+	void submit(PipelineStage stage, Runnable task){
+		
+		tasks.incrementAndGet();
+		try {
+			stage.submit(() -> {
+				try {
+					run(task);
+				} finally {
+					release(tasks);
+				}
+			});
+		} catch (RuntimeException e) {
+			release(tasks);
+			throw e;
+		}
+	}
+	
+	void buffered(){
+		writes.incrementAndGet();
+	}
+	
+	void written(){
+		release(writes);
+	}
+	
+	/**
+	 * Wait until every task of this submitter ran, no further assessments can be queued for it after.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void awaitTasks() throws InterruptedException {
+		await(tasks);
+	}
+	
+	/**
+	 * Wait until every assessment of this submitter queued on the writer is written.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void awaitWrites() throws InterruptedException {
+		await(writes);
+	}
+	
+	private void release(AtomicLong counter){
+		
+		if (counter.decrementAndGet() == 0){
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	private void await(AtomicLong counter) throws InterruptedException {
+		
+		synchronized (this) {
+			while (counter.get() > 0)
+				wait(1000L);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "tasks=" + tasks.get() + ", writes=" + writes.get();
+	}
+
+}
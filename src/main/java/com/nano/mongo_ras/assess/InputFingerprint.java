@@ -0,0 +1,35 @@
+package com.nano.mongo_ras.assess;
+
+import com.nano.mongo_ras.documents.HistorySummary;
+
+/**
+ * 64 bit fingerprint of what an assessment is computed from besides the passage of time: 
+ * SubscriberHistory count and latest recharge_time, pay_type and the version of the borrowable amount ladder.
+ * 
+ */
+public final class InputFingerprint {
+	
+	private InputFingerprint() {
+	}
+	
+	/**
+	 * Compute input fingerprint.
+	 * 
+	 * @param historySummary subscribers history summary, null if subscriber has no history
+	 * @param payType pay_type of SubscriberState, may be null
+	 * @param ladderVersion {@link RuleEngine#getLadderVersion()}
+	 * @return fingerprint, never 0
+	 */
+	public static long of(HistorySummary historySummary, 
+			String payType, long ladderVersion){
+		
+		long hash = OutcomeFingerprint.SEED;
+		hash = OutcomeFingerprint.mix(hash, historySummary == null ? 0L : historySummary.getCount());
+		hash = OutcomeFingerprint.mix(hash, historySummary == null ? 0L : historySummary.getLatestRechargeTime());
+		hash = OutcomeFingerprint.mix(hash, payType == null ? null : payType.toUpperCase().hashCode());
+		hash = OutcomeFingerprint.mix(hash, ladderVersion);
+		
+		return hash == 0L ? 1L : hash;
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.nano.mongo_ras.assess;
+
+import com.nano.jpa.entity.ras.SmsMessage;
+import com.nano.jpa.entity.ras.SubscriberAssessment;
+
+/**
+ * 64 bit fingerprint of a {@link SubscriberAssessment} outcome: max borrowable amount, top-up counters, 
+ * tariff plan and {@link SmsMessage} content. Age on network and last processed time are left out, 
+ * they change every sweep and are advanced without a full write.
+ * 
+ */
+public final class OutcomeFingerprint {
+	
+	static final long SEED = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+	
+	private OutcomeFingerprint() {
+	}
+	
+	/**
+	 * Compute outcome fingerprint.
+	 * 
+	 * @param subscriberAssessment subscribers assessment info
+	 * @return fingerprint
+	 */
+	public static long of(SubscriberAssessment subscriberAssessment){
+		
+		long hash = SEED;
+		hash = mix(hash, subscriberAssessment.getMaxBorrowableAmount() == null ? null : (Object) subscriberAssessment.getMaxBorrowableAmount().getPk());
+		hash = mix(hash, subscriberAssessment.getNumberOfTopUps());
+		hash = mix(hash, subscriberAssessment.getTotalTopUpValue());
+		hash = mix(hash, subscriberAssessment.getTopUpDuration());
+		hash = mix(hash, subscriberAssessment.getTopUpValueDuration());
+		hash = mix(hash, subscriberAssessment.getTariffPlan() == null ? null : subscriberAssessment.getTariffPlan().ordinal());
+		hash = mix(hash, subscriberAssessment.isInDebt());
+		
+		SmsMessage smsMessage = subscriberAssessment.getSmsMessage();
+		hash = mix(hash, smsMessage == null ? null : smsMessage.getMessageId() == null ? -1 : smsMessage.getMessageId().ordinal());
+		if (smsMessage != null){
+			hash = mix(hash, smsMessage.getDaysLeft());
+			hash = mix(hash, smsMessage.getTopupsLeft());
+			hash = mix(hash, smsMessage.getTopupsAmountLeft());
+			hash = mix(hash, smsMessage.getMinAllowedDays());
+			hash = mix(hash, smsMessage.getMinAllowedTopups());
+			hash = mix(hash, smsMessage.getMinAllowedTopupsAmount());
+		}
+		
+		return hash;
+	}
+	
+	static long mix(long hash, Object value){
+		
+		long bits = value == null ? 0x9e3779b97f4a7c15L 
+				: value instanceof Boolean ? ((Boolean) value ? 1L : 2L) : ((Number) value).longValue();
+		for (int i = 0; i < 8; i++){
+			hash ^= (bits >>> (i << 3)) & 0xff;
+			hash *= PRIME;
+		}
+		
+		return hash;
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Stage of the {@link AssessmentPipeline} with its own thread pool and bounded queue.
+ * Submitting blocks while the queue is full, so a slow stage holds back the stages feeding it.
+ * Queue depth and utilisation, busy time over available thread time since {@link #start()}, 
+ * show which stage is the bottleneck.
+ * 
+ */
+public class PipelineStage {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	private final String name ;
+	
+	private final int threads ;
+	
+	private final int capacity ;
+	
+	private final BlockingQueue<Runnable> queue ;
+	
+	private final ThreadPoolExecutor executor ;
+	
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final LongAdder busyNanos = new LongAdder();
+	private final LongAdder tasks = new LongAdder();
+	
+	private volatile long startNanos = System.nanoTime();
+
+	/**
+	 * @param name stage name
+	 * @param threads number of threads
+	 * @param capacity number of tasks queued before submitting blocks
+	 * @param threadFactory container managed thread factory
+	 */
+	public PipelineStage(String name, 
+			int threads, int capacity, ThreadFactory threadFactory) {
+		
+		this.name = name;
+		this.threads = Math.max(1, threads);
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<>(this.capacity);
+		this.executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS, 
+				queue, threadFactory, this::block);
+	}
+	
+	/**
+	 * Reset statistics.
+	 */
+	public void start(){
+		
+		maxDepth.set(0);
+		busyNanos.reset();
+		tasks.reset();
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Queue a task, waiting for room while the queue is full.
+	 * 
+	 * @param task stage task
+	 */
+	public void submit(Runnable task){
+		
+		pending.incrementAndGet();
+		try {
+			executor.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			complete();
+			throw e;
+		}
+		
+		int depth = queue.size();
+		int max = maxDepth.get();
+		while (depth > max && !maxDepth.compareAndSet(max, depth))
+			max = maxDepth.get();
+	}
+	
+	/**
+	 * Wait until every submitted task completed.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void awaitIdle() throws InterruptedException {
+		
+		synchronized (this) {
+			while (pending.get() > 0)
+				wait(1000L);
+		}
+	}
+	
+	/**
+	 * Stop accepting tasks, queued tasks still run.
+	 */
+	public void shutdown(){
+		executor.shutdown();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getDepth() {
+		return queue.size();
+	}
+	
+	/**
+	 * @return fraction of thread time spent running tasks since {@link #start()}
+	 */
+	public double getUtilisation() {
+		
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0D : Math.min(1D, (double) busyNanos.sum() / elapsed / threads);
+	}
+	
+	private void run(Runnable task){
+		
+		long start = System.nanoTime();
+		try {
+			task.run();
+		} catch (Exception e) {
+			log.error(name + " stage task failed", e);
+		} finally {
+			busyNanos.add(System.nanoTime() - start);
+			tasks.increment();
+			complete();
+		}
+	}
+	
+	private void complete(){
+		
+		if (pending.decrementAndGet() == 0){
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	private void block(Runnable task, ThreadPoolExecutor executor){
+		
+		if (executor.isShutdown())
+			throw new RejectedExecutionException(name + " stage is shut down");
+		
+		try {
+			queue.put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(name + " stage interrupted", e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return name + ": depth=" + getDepth() + "/" + capacity + ", max depth=" + maxDepth.get() + ", tasks=" + tasks.sum() 
+				+ ", threads=" + threads + String.format(", utilisation=%.1f%%", 100D * getUtilisation());
+	}
+
+}
@@ -1,17 +1,31 @@
 package com.nano.mongo_ras.assess;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
 
-import javax.ejb.Asynchronous;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 
-import org.apache.commons.lang.time.StopWatch;
-import org.jboss.ejb3.annotation.TransactionTimeout;
+import org.bson.Document;
 import org.jboss.logging.Logger;
 
 import com.nano.jpa.entity.Subscriber;
+import com.nano.mongo_ras.documents.DocumentBatch;
+import com.nano.mongo_ras.documents.HistorySummary;
+import com.nano.mongo_ras.documents.SubscriberState;
+import com.nano.mongo_ras.documents.TopUpHistory;
+import com.nano.mongo_ras.metrics.EvaluationModeStats;
+import com.nano.mongo_ras.metrics.SweepStatistics;
+import com.nano.mongo_ras.tools.ApplicationBean;
+import com.nano.mongo_ras.tools.BatchQueries;
+import com.nano.mongo_ras.tools.DocumentManager;
 import com.nano.mongo_ras.tools.SingletonQueries;
 
 @Stateless
@@ -24,43 +38,159 @@ public class RasProcessor {
 	
 	@Inject
 	private SingletonQueries queryManager ;
+	
+	@Inject
+	private DocumentManager dm ;
+	
+	@Inject
+	private ApplicationBean applicationBean ;
+	
+	@Inject
+	private EvaluationModeStats evaluationModeStats ;
+	
+	@Inject
+	private SweepStatistics sweepStatistics ;
+	
+	@Inject
+	private AssessmentWriter assessmentWriter ;
+	
+	@Inject
+	private RuleEngine ruleEngine ;
+	
+	@Inject
+	private BatchQueries batchQueries ;
 
 	/**
-	 * Iterate through list and forward for asynchronous assessment.
+	 * Prepare a chunk of MSISDNs sharing one pre-fetch for evaluation, the fetch stage of the {@link AssessmentPipeline}.
+	 * Subscribers of the chunk are fetched or created in bulk with {@link SingletonQueries#createSubscribers(java.util.Collection)}.
+	 * Subscribers assessed within the last ras.freshness.minutes are left out of the pre-fetch, 
+	 * top-up history is only fetched for subscribers old enough on the network to qualify for a tier.
+	 * With the JDBC sink, subscribers whose {@link InputFingerprint} matches their stored assessment 
+	 * and whose outcome is still stable are recorded as processed without being evaluated.
 	 * 
-	 * @param subscribers list of subscriber MSISDNs.
+	 * @param msisdns subscriber unique MSISDNs
+	 * @return subscribers left to evaluate with their pre-fetched documents
 	 */
-	@Asynchronous
-	@TransactionTimeout(unit = TimeUnit.MINUTES, value = 300)
-	public void start(List<String> subscribers) {
-
-		StopWatch stopWatch = new StopWatch();
-		stopWatch.start();
+	public AssessmentChunk prepare(List<String> msisdns){
 		
-		subscribers.forEach(msisdn -> initAssessment(msisdn));
-
-		stopWatch.stop();
-		log.info("finished iterating through subscriber list" +  + stopWatch.getTime() + "ms");
+		List<Subscriber> subscribers = new ArrayList<>(msisdns.size());
+		for (Subscriber subscriber : queryManager.createSubscribers(msisdns).values()) {
+			if (assessment.isAssessmentDue(subscriber))
+				subscribers.add(subscriber);
+		}
+		
+		return prefetch(subscribers);
 	}
 	
 	/**
-	 * Initialize assessment process.
+	 * Pre-fetch documents for subscribers due for assessment.
 	 * 
-	 * @param msisdn subscriber unique MSISDN
+	 * @param subscribers subscribers due for assessment, memo hits are removed
+	 * @return subscribers left to evaluate with their pre-fetched documents
 	 */
-	public void initAssessment(String msisdn){
-
-		Subscriber subscriber = queryManager.createSubscriber(msisdn);
-
+	private AssessmentChunk prefetch(List<Subscriber> subscribers){
+		
+		if (subscribers.isEmpty())
+			return new AssessmentChunk(subscribers, null);
+		
+		List<String> formattedMsisdns = new ArrayList<>(subscribers.size());
+		subscribers.forEach(subscriber -> formattedMsisdns.add(subscriber.getMsisdn()));
+		
+		Map<String, Document> subscriberStates = dm.getSubscriberStateByMsisdns(formattedMsisdns);
+		
+		Set<String> rechargedMsisdns;
+		Map<String, Long> inputFingerprints;
+		if (assessmentWriter.isJdbcSink()) {
+			Map<String, HistorySummary> historySummaries = dm.getHistorySummaryByMsisdns(formattedMsisdns);
+			rechargedMsisdns = historySummaries.keySet();
+			inputFingerprints = skipUnchanged(subscribers, historySummaries, subscriberStates);
+		} else {
+			rechargedMsisdns = null;
+			inputFingerprints = Collections.emptyMap();
+		}
+		
+		Set<String> historyMsisdns = new HashSet<>();
+		for (Subscriber subscriber : subscribers) {
+			if (assessment.requiresTopUpHistory(subscriber, subscriberStates.get(subscriber.getMsisdn())))
+				historyMsisdns.add(subscriber.getMsisdn());
+		}
+		sweepStatistics.recordHistoryReads(historyMsisdns.size());
+		
+		if (rechargedMsisdns == null) {
+			List<String> msisdns = new ArrayList<>(subscribers.size());
+			subscribers.forEach(subscriber -> msisdns.add(subscriber.getMsisdn()));
+			rechargedMsisdns = dm.getMsisdnsWithHistory(msisdns);
+		}
+		
+		boolean aggregate = applicationBean.isAggregateTopUps();
+		long start = System.nanoTime();
+		Map<String, ? extends TopUpHistory> topUpHistories = dm.getTopUpHistoryByMsisdns(new ArrayList<>(historyMsisdns), 
+				assessment.getTopUpsDurations(), aggregate);
+		evaluationModeStats.record(aggregate, historyMsisdns.size(), System.nanoTime() - start);
+		
+		DocumentBatch documentBatch = new DocumentBatch(subscriberStates, topUpHistories, historyMsisdns, inputFingerprints, rechargedMsisdns);
+		
+		return new AssessmentChunk(subscribers, documentBatch);
+	}
+	
+	/**
+	 * Compute input fingerprints of a chunk and record subscribers whose stored assessment still holds as processed, 
+	 * removing them from the subscribers to evaluate.
+	 * 
+	 * @param subscribers subscribers due for assessment, memo hits are removed
+	 * @param historySummaries {@link HistorySummary} of subscribers keyed by MSISDN
+	 * @param subscriberStates SubscriberState documents keyed by MSISDN
+	 * @return input fingerprints keyed by MSISDN
+	 */
+	private Map<String, Long> skipUnchanged(List<Subscriber> subscribers, 
+			Map<String, HistorySummary> historySummaries, Map<String, Document> subscriberStates){
+		
+		long ladderVersion = ruleEngine.getLadderVersion();
+		
+		Map<String, Long> inputFingerprints = new HashMap<>();
+		List<Long> assessed = new ArrayList<>();
+		for (Subscriber subscriber : subscribers) {
+			Document subscriberState = subscriberStates.get(subscriber.getMsisdn());
+			inputFingerprints.put(subscriber.getMsisdn(), InputFingerprint.of(historySummaries.get(subscriber.getMsisdn()), 
+					subscriberState == null ? null : subscriberState.getString(SubscriberState.pay_type.name()), ladderVersion));
+			if (subscriber.getAssessment() != null)
+				assessed.add(subscriber.getPk());
+		}
+		
+		if (assessed.isEmpty())
+			return inputFingerprints;
+		
+		Map<Long, long[]> inputMemos;
 		try {
-			if(subscriber.getAssessment() == null)
-				assessment.performFreshAssessment(subscriber);
-			else
-				assessment.reAssessment(subscriber);
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			log.error("", e);
+			inputMemos = batchQueries.getInputMemos(assessed);
+		} catch (SQLException e) {
+			log.error("Unable to read input memos, evaluating all subscribers", e);
+			return inputFingerprints;
 		}
+		
+		int sweepDay = applicationBean.getSweepDay();
+		int memoHits = 0;
+		for (Iterator<Subscriber> iterator = subscribers.iterator(); iterator.hasNext();) {
+			Subscriber subscriber = iterator.next();
+			if (subscriber.getAssessment() == null)
+				continue;
+			
+			long inputFingerprint = inputFingerprints.get(subscriber.getMsisdn());
+			long[] inputMemo = inputMemos.get(subscriber.getPk());
+			if (inputMemo == null || inputMemo[0] != inputFingerprint || sweepDay >= inputMemo[1])
+				continue;
+			
+			try {
+				assessment.skipUnchanged(subscriber, subscriberStates.get(subscriber.getMsisdn()), inputFingerprint, (int) inputMemo[1]);
+				iterator.remove();
+				memoHits++;
+			} catch (Exception e) {
+				log.error("", e);
+			}
+		}
+		sweepStatistics.recordMemoHits(memoHits);
+		
+		return inputFingerprints;
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+package com.nano.mongo_ras.assess;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import com.nano.jpa.entity.ras.BorrowableAmount;
+import com.nano.mongo_ras.metrics.CriterionStats;
+import com.nano.mongo_ras.tools.ApplicationBean;
+import com.nano.mongo_ras.tools.QueryManager;
+
+/**
+ * Holds the {@link EvaluationPlan} of every {@link BorrowableAmount}, compiled at the start of a sweep.
+ * Criteria are ordered by cost over observed rejection rate so the ordering adapts between sweeps.
+ * 
+ */
+@ApplicationScoped
+public class RuleEngine {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	@Inject
+	private ApplicationBean applicationBean;
+	
+	@Inject
+	private QueryManager qm;
+	
+	@Inject
+	private CriterionStats criterionStats;
+	
+	private volatile EvaluationPlan[] plans;
+	
+	private volatile int minAgeOnNetwork;
+	
+	private volatile long ladderVersion;
+	
+	/**
+	 * Compile evaluation plans from the loaded borrowable amounts, assessment toggles and rejection statistics.
+	 */
+	public void compile(){
+		
+		if (applicationBean.getBorrowableAmounts() == null)
+			applicationBean.setBorrowableAmounts(qm.getBorrowableAmountListAsc());
+		
+		int enabledCriteria = getEnabledCriteria();
+		Criterion[] predicates = Arrays.stream(Criterion.values())
+				.filter(e -> (enabledCriteria & e.mask()) != 0)
+				.sorted(Comparator.comparing(Criterion::isHistoryBased)
+						.thenComparingDouble(e -> e.getCost() / criterionStats.getRejectionRate(e)))
+				.toArray(Criterion[]::new);
+		
+		List<BorrowableAmount> borrowableAmounts = applicationBean.getBorrowableAmounts();
+		EvaluationPlan[] compiled = new EvaluationPlan[borrowableAmounts.size()];
+		for (int i = 0; i < compiled.length; i++)
+			compiled[i] = new EvaluationPlan(borrowableAmounts.get(i), enabledCriteria, predicates);
+		
+		int minimum = Arrays.stream(compiled).mapToInt(EvaluationPlan::getMinAgeOnNetwork).min().orElse(0);
+		minAgeOnNetwork = (enabledCriteria & Criterion.AGE_ON_NETWORK.mask()) != 0 ? minimum : 0;
+		ladderVersion = getLadderVersion(compiled, enabledCriteria);
+		plans = compiled;
+		log.info("compiled " + compiled.length + " evaluation plans, predicate order:" + Arrays.toString(predicates) 
+				+ " rejections - " + criterionStats);
+	}
+	
+	/**
+	 * Fetch compiled plans, compiling on first use.
+	 * 
+	 * @return plans in ascending {@link BorrowableAmount} order
+	 */
+	public EvaluationPlan[] getPlans(){
+		
+		if (plans == null)
+			compile();
+		
+		return plans;
+	}
+	
+	/**
+	 * Lowest age on network any {@link BorrowableAmount} accepts, younger subscribers fail every tier.
+	 * 
+	 * @return minimum age on network in days, 0 if age on network is not assessed
+	 */
+	public int getMinAgeOnNetwork(){
+		
+		if (plans == null)
+			compile();
+		
+		return minAgeOnNetwork;
+	}
+	
+	/**
+	 * Version of the borrowable amount ladder, changes whenever an amount, its criteria or the assessment toggles change.
+	 * 
+	 * @return ladder version
+	 */
+	public long getLadderVersion(){
+		
+		if (plans == null)
+			compile();
+		
+		return ladderVersion;
+	}
+	
+	/**
+	 * Probe {@link EvaluationPlan} at position for a pass/fail verdict.
+	 * 
+	 * @param context evaluation context of subscriber
+	 * @param position position in the list of plans
+	 * @return true if eligible
+	 */
+	boolean passes(EvaluationContext context, int position){
+		
+		return context.beginTier(position).passes(context, criterionStats);
+	}
+	
+	private long getLadderVersion(EvaluationPlan[] compiled, 
+			int enabledCriteria){
+		
+		long version = OutcomeFingerprint.mix(OutcomeFingerprint.SEED, enabledCriteria);
+		for (EvaluationPlan plan : compiled) {
+			BorrowableAmount borrowableAmount = plan.getBorrowableAmount();
+			version = OutcomeFingerprint.mix(version, (Object) borrowableAmount.getPk());
+			version = OutcomeFingerprint.mix(version, borrowableAmount.getAmount());
+			version = OutcomeFingerprint.mix(version, borrowableAmount.getCriteria().getMinAgeOnNetwork());
+			version = OutcomeFingerprint.mix(version, borrowableAmount.getCriteria().getMinTopUps());
+			version = OutcomeFingerprint.mix(version, borrowableAmount.getCriteria().getMinTopUpValue());
+			version = OutcomeFingerprint.mix(version, borrowableAmount.getCriteria().getMinTopUpsDuration());
+		}
+		
+		return version;
+	}
+	
+	private int getEnabledCriteria(){
+		
+		int enabledCriteria = 0;
+		if (applicationBean.isAssessBlacklistStatus())
+			enabledCriteria |= Criterion.BLACKLIST.mask();
+		if (applicationBean.isAssessTarrifplan())
+			enabledCriteria |= Criterion.TARIFF_PLAN.mask();
+		if (applicationBean.isAssessAgeOnNetwork())
+			enabledCriteria |= Criterion.AGE_ON_NETWORK.mask();
+		if (applicationBean.isAssessTopupFrequency())
+			enabledCriteria |= Criterion.TOPUP_COUNT.mask();
+		if (applicationBean.isAssessTopupAmount())
+			enabledCriteria |= Criterion.TOPUP_AMOUNT.mask();
+		
+		return enabledCriteria;
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.nano.mongo_ras.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.batch.api.chunk.AbstractItemWriter;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.jboss.logging.Logger;
+
+import com.nano.jpa.entity.Subscriber;
+import com.nano.mongo_ras.assess.Assessment;
+import com.nano.mongo_ras.assess.AssessmentChunk;
+import com.nano.mongo_ras.assess.AssessmentWriter;
+import com.nano.mongo_ras.assess.InFlight;
+import com.nano.mongo_ras.assess.RasProcessor;
+
+/**
+ * Assess a chunk of MSISDNs sharing one pre-fetch and wait for their assessments to be written, 
+ * so the checkpoint that follows never runs ahead of what was persisted.
+ * Subscribers are fetched or created and filtered by due date in bulk for the whole chunk, as the fetch stage of the pipeline does.
+ * 
+ */
+@Named
+@Dependent
+public class AssessmentItemWriter extends AbstractItemWriter {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	@Inject
+	private RasProcessor rasProcessor ;
+	
+	@Inject
+	private Assessment assessment ;
+	
+	@Inject
+	private AssessmentWriter assessmentWriter ;
+
+	@Override
+	public void writeItems(List<Object> items) throws Exception {
+		
+		List<String> msisdns = new ArrayList<>(items.size());
+		items.forEach(item -> msisdns.add((String) item));
+		
+		// partitions share the writer, each waits only for the assessments of its own chunk
+		InFlight inFlight = new InFlight();
+		inFlight.run(() -> {
+			AssessmentChunk assessmentChunk = rasProcessor.prepare(msisdns);
+			for (Subscriber subscriber : assessmentChunk.getSubscribers()) {
+				try {
+					assessment.assess(subscriber, assessmentChunk.getDocumentBatch());
+				} catch (Exception e) {
+					log.error("", e);
+				}
+			}
+		});
+		
+		assessmentWriter.awaitIdle(inFlight);
+	}
+
+}
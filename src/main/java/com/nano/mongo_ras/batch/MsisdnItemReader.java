@@ -0,0 +1,79 @@
+package com.nano.mongo_ras.batch;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+
+import javax.batch.api.BatchProperty;
+import javax.batch.api.chunk.AbstractItemReader;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.nano.mongo_ras.tools.MsisdnPage;
+import com.nano.mongo_ras.tools.QueryManager;
+
+/**
+ * Read MSISDNs due for assessment from a range of the subscriber view, a keyset page at a time.
+ * The checkpoint is the last MSISDN read, a restart resumes right after it.
+ * 
+ */
+@Named
+@Dependent
+public class MsisdnItemReader extends AbstractItemReader {
+	
+	@Inject
+	@BatchProperty
+	private String firstMsisdn ;
+	
+	@Inject
+	@BatchProperty
+	private String lastMsisdn ;
+	
+	@Inject
+	@BatchProperty
+	private String pageSize ;
+	
+	@Inject
+	private QueryManager queryManager ;
+	
+	private String checkpoint ;
+	
+	// last view row paged through, due or not
+	private String position ;
+	
+	private boolean exhausted ;
+	
+	private Iterator<String> msisdns = Collections.emptyIterator();
+	
+	@Override
+	public void open(Serializable checkpoint) throws Exception {
+		
+		this.checkpoint = checkpoint != null ? (String) checkpoint : firstMsisdn == null ? "" : firstMsisdn;
+		position = this.checkpoint;
+	}
+
+	@Override
+	public Object readItem() throws Exception {
+		
+		while (!msisdns.hasNext()) {
+			if (exhausted)
+				return null;
+			
+			MsisdnPage page = queryManager.getDueMsisdnFromView(position, 
+					lastMsisdn == null || lastMsisdn.isEmpty() ? null : lastMsisdn, Integer.parseInt(pageSize));
+			exhausted = page.isEmpty();
+			position = page.getLastMsisdn();
+			msisdns = page.getMsisdns().iterator();
+		}
+		
+		checkpoint = msisdns.next();
+		return checkpoint;
+	}
+	
+	@Override
+	public Serializable checkpointInfo() throws Exception {
+		return checkpoint;
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.nano.mongo_ras.batch;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.batch.operations.JobExecutionNotRunningException;
+import javax.batch.operations.JobOperator;
+import javax.batch.operations.NoSuchJobException;
+import javax.batch.runtime.BatchRuntime;
+import javax.batch.runtime.BatchStatus;
+import javax.batch.runtime.JobExecution;
+import javax.batch.runtime.JobInstance;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import com.nano.mongo_ras.tools.PropertiesManager;
+import com.nano.mongo_ras.tools.QueryManager;
+
+/**
+ * Run the sweep as the ras-sweep JSR-352 job: partitioned MSISDN ranges read by key, 
+ * assessed and committed every ras.batch.item.count subscribers with the last MSISDN as checkpoint.
+ * A job whose last execution failed or was stopped is restarted from its checkpoints instead of started over.
+ * Partition bounds are computed once when a job instance starts and carried in its parameters to every restart, 
+ * so the checkpoints of each partition stay within the range they were taken in.
+ * An execution still marked running that this JVM did not start was left by a crash, it is stopped and then restarted.
+ * The batch engine assumes one node runs the sweep.
+ * 
+ */
+@ApplicationScoped
+public class SweepJob {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	public static final String JOB_NAME = "ras-sweep";
+	
+	public static final String BOUNDS = "bounds";
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Inject
+	private QueryManager queryManager ;
+	
+	// executions started by this JVM, any other execution marked running was abandoned by a crash
+	private final Set<Long> executions = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Start or restart the job and wait for it to complete.
+	 * 
+	 * @return final batch status
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public BatchStatus run() throws InterruptedException {
+		
+		JobOperator jobOperator = BatchRuntime.getJobOperator();
+		
+		Properties jobParameters = new Properties();
+		jobParameters.setProperty("partitions", String.valueOf(props.getInt("ras.batch.partitions", 4)));
+		jobParameters.setProperty("itemCount", String.valueOf(props.getInt("ras.batch.item.count", 500)));
+		jobParameters.setProperty("pageSize", String.valueOf(props.getInt("ras.batch.page.size", 5000)));
+		jobParameters.setProperty("transactionTimeout", String.valueOf(props.getInt("ras.batch.transaction.timeout.seconds", 600)));
+		
+		JobExecution lastExecution = getLastExecution(jobOperator);
+		if (lastExecution != null && isRunning(lastExecution.getBatchStatus()) 
+				&& !executions.contains(lastExecution.getExecutionId()))
+			lastExecution = stop(jobOperator, lastExecution);
+		
+		long executionId;
+		if (lastExecution != null && isRunning(lastExecution.getBatchStatus())){
+			// still running from a previous run of this JVM that stopped waiting for it
+			executionId = lastExecution.getExecutionId();
+			log.info("Waiting for running " + JOB_NAME + " execution:" + executionId);
+		}
+		else if (lastExecution != null && (lastExecution.getBatchStatus() == BatchStatus.FAILED 
+				|| lastExecution.getBatchStatus() == BatchStatus.STOPPED)){
+			String bounds = lastExecution.getJobParameters() == null ? null : lastExecution.getJobParameters().getProperty(BOUNDS);
+			if (bounds != null)
+				jobParameters.setProperty(BOUNDS, bounds);
+			log.info("Restarting " + JOB_NAME + " execution:" + lastExecution.getExecutionId());
+			executionId = jobOperator.restart(lastExecution.getExecutionId(), jobParameters);
+		}
+		else{
+			List<String> bounds = queryManager.getMsisdnPartitionBounds(Math.max(1, props.getInt("ras.batch.partitions", 4)));
+			jobParameters.setProperty(BOUNDS, String.join(",", bounds));
+			executionId = jobOperator.start(JOB_NAME, jobParameters);
+		}
+		executions.add(executionId);
+		
+		long pollInterval = props.getInt("ras.batch.poll.seconds", 10);
+		BatchStatus batchStatus = jobOperator.getJobExecution(executionId).getBatchStatus();
+		while (isRunning(batchStatus)) {
+			TimeUnit.SECONDS.sleep(pollInterval);
+			batchStatus = jobOperator.getJobExecution(executionId).getBatchStatus();
+		}
+		executions.remove(executionId);
+		log.info(JOB_NAME + " execution:" + executionId + " completed with status:" + batchStatus);
+		
+		return batchStatus;
+	}
+	
+	/**
+	 * Stop an execution left running by a crashed JVM so it can be restarted from its checkpoints, 
+	 * waiting up to ras.batch.stop.seconds for it to be marked stopped.
+	 * 
+	 * @return execution as last read
+	 */
+	private JobExecution stop(JobOperator jobOperator, 
+			JobExecution jobExecution) throws InterruptedException {
+		
+		long executionId = jobExecution.getExecutionId();
+		log.warn("Stopping " + JOB_NAME + " execution:" + executionId + " left " + jobExecution.getBatchStatus() + " by a previous run");
+		try {
+			jobOperator.stop(executionId);
+		} catch (JobExecutionNotRunningException e) {
+			log.warn(JOB_NAME + " execution:" + executionId + " is not running", e);
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(props.getInt("ras.batch.stop.seconds", 60));
+		jobExecution = jobOperator.getJobExecution(executionId);
+		while (isRunning(jobExecution.getBatchStatus()) && System.nanoTime() < deadline) {
+			TimeUnit.SECONDS.sleep(1);
+			jobExecution = jobOperator.getJobExecution(executionId);
+		}
+		
+		if (isRunning(jobExecution.getBatchStatus())){
+			log.error(JOB_NAME + " execution:" + executionId + " could not be stopped, starting a new instance");
+			return null;
+		}
+		
+		return jobExecution;
+	}
+	
+	private boolean isRunning(BatchStatus batchStatus){
+		return batchStatus == BatchStatus.STARTING || batchStatus == BatchStatus.STARTED || batchStatus == BatchStatus.STOPPING;
+	}
+	
+	private JobExecution getLastExecution(JobOperator jobOperator){
+		
+		try {
+			List<JobInstance> jobInstances = jobOperator.getJobInstances(JOB_NAME, 0, 1);
+			if (jobInstances.isEmpty())
+				return null;
+			
+			List<JobExecution> jobExecutions = jobOperator.getJobExecutions(jobInstances.get(0));
+			return jobExecutions.isEmpty() ? null : jobExecutions.get(jobExecutions.size() - 1);
+		} catch (NoSuchJobException e) {
+			return null;
+		}
+	}
+
+}
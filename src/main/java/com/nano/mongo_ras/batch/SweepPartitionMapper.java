@@ -0,0 +1,69 @@
+package com.nano.mongo_ras.batch;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.batch.api.BatchProperty;
+import javax.batch.api.partition.PartitionMapper;
+import javax.batch.api.partition.PartitionPlan;
+import javax.batch.api.partition.PartitionPlanImpl;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.jboss.logging.Logger;
+
+import com.nano.mongo_ras.tools.QueryManager;
+
+/**
+ * Split the subscriber view into MSISDN ranges of about equal size, one partition of the assess step each.
+ * A range runs from firstMsisdn exclusive to lastMsisdn inclusive.
+ * Bounds are taken from the bounds job parameter {@link SweepJob} computed when the job instance started, 
+ * so a restart maps the same ranges its partition checkpoints were taken in.
+ * 
+ */
+@Named
+@Dependent
+public class SweepPartitionMapper implements PartitionMapper {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	@Inject
+	@BatchProperty
+	private String partitions ;
+	
+	@Inject
+	@BatchProperty
+	private String bounds ;
+	
+	@Inject
+	private QueryManager queryManager ;
+
+	@Override
+	public PartitionPlan mapPartitions() throws Exception {
+		
+		List<String> bounds = this.bounds == null || this.bounds.isEmpty() 
+				? queryManager.getMsisdnPartitionBounds(Math.max(1, Integer.parseInt(partitions))) 
+				: Arrays.asList(this.bounds.split(","));
+		
+		Properties[] partitionProperties = new Properties[Math.max(1, bounds.size())];
+		for (int i = 0; i < partitionProperties.length; i++) {
+			partitionProperties[i] = new Properties();
+			partitionProperties[i].setProperty("firstMsisdn", i == 0 ? "" : bounds.get(i - 1));
+			if (i < bounds.size())
+				partitionProperties[i].setProperty("lastMsisdn", bounds.get(i));
+		}
+		log.info("sweep partitions:" + partitionProperties.length);
+		
+		PartitionPlan partitionPlan = new PartitionPlanImpl();
+		partitionPlan.setPartitions(partitionProperties.length);
+		partitionPlan.setThreads(partitionProperties.length);
+		partitionPlan.setPartitionProperties(partitionProperties);
+		// a restart resumes every partition from its own checkpoint
+		partitionPlan.setPartitionsOverride(false);
+		
+		return partitionPlan;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.nano.mongo_ras.documents;
+
+import java.util.Arrays;
+
+/**
+ * {@link TopUpHistory} holding per-duration top-up count and sum computed by a Mongo aggregation pipeline.
+ * Windows are resolved against the sweep day when the pipeline runs, so today is not consulted again.
+ * 
+ */
+public class AggregatedTopUpHistory implements TopUpHistory {
+	
+	static final AggregatedTopUpHistory EMPTY = new AggregatedTopUpHistory(new int[0], new int[0], new long[0]);
+	
+	private final int[] durations ;
+	private final int[] counts ;
+	private final long[] sums ;
+
+	/**
+	 * @param durations sorted distinct criteria durations in days
+	 * @param counts top-up count per duration
+	 * @param sums top-up value in kobo per duration
+	 */
+	public AggregatedTopUpHistory(int[] durations, 
+			int[] counts, long[] sums) {
+		
+		this.durations = durations;
+		this.counts = counts;
+		this.sums = sums;
+	}
+
+	@Override
+	public int countTopUpsWithin(int today, int days) {
+		
+		return durations.length == 0 ? 0 : counts[indexOf(days)];
+	}
+
+	@Override
+	public long sumTopUpsWithin(int today, int days) {
+		
+		return durations.length == 0 ? 0 : sums[indexOf(days)];
+	}
+
+	/**
+	 * Day of each aggregated top-up is not kept, totals are only known to hold for today.
+	 */
+	@Override
+	public int nextWindowExitDay(int today, int[] durations) {
+		return isEmpty() ? Integer.MAX_VALUE : today + 1;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		
+		for (int count : counts)
+			if (count > 0)
+				return false;
+		
+		return true;
+	}
+	
+	private int indexOf(int days){
+		
+		int index = Arrays.binarySearch(durations, days);
+		if (index < 0)
+			throw new IllegalArgumentException("Top-ups were not aggregated for a duration of " + days + " days");
+		
+		return index;
+	}
+
+}
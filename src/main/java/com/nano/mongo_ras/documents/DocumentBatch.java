@@ -0,0 +1,116 @@
+package com.nano.mongo_ras.documents;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * SubscriberState documents and top-up histories pre-fetched for a batch of MSISDNs.
+ * Top-up history may be pre-fetched for only part of the batch.
+ * 
+ */
+public class DocumentBatch {
+	
+	private final Map<String, Document> subscriberStates ;
+	
+	private final Map<String, ? extends TopUpHistory> topUpHistories ;
+	
+	private final Set<String> topUpHistoryMsisdns ;
+	
+	private final Map<String, Long> inputFingerprints ;
+	
+	private final Set<String> rechargedMsisdns ;
+
+	public DocumentBatch(Map<String, Document> subscriberStates, 
+			Map<String, ? extends TopUpHistory> topUpHistories) {
+		
+		this(subscriberStates, topUpHistories, null, null, null);
+	}
+
+	/**
+	 * @param subscriberStates SubscriberState documents keyed by MSISDN
+	 * @param topUpHistories top-up histories keyed by MSISDN
+	 * @param topUpHistoryMsisdns MSISDNs top-up history was fetched for, null if fetched for all
+	 * @param inputFingerprints assessment input fingerprints keyed by MSISDN, null if not computed
+	 * @param rechargedMsisdns MSISDNs with any SubscriberHistory, null if not checked
+	 */
+	public DocumentBatch(Map<String, Document> subscriberStates, 
+			Map<String, ? extends TopUpHistory> topUpHistories, Set<String> topUpHistoryMsisdns, 
+			Map<String, Long> inputFingerprints, Set<String> rechargedMsisdns) {
+		
+		this.subscriberStates = subscriberStates;
+		this.topUpHistories = topUpHistories;
+		this.topUpHistoryMsisdns = topUpHistoryMsisdns;
+		this.inputFingerprints = inputFingerprints;
+		this.rechargedMsisdns = rechargedMsisdns;
+	}
+	
+	/**
+	 * Check whether history existence was checked for the whole batch.
+	 * 
+	 * @return true if {@link #hasSubscriberHistory(String)} answers for every MSISDN of the batch
+	 */
+	public boolean isSubscriberHistoryChecked(){
+		
+		return rechargedMsisdns != null;
+	}
+	
+	/**
+	 * Check whether subscriber has any SubscriberHistory, MSISDNs absent from the check have none.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @return true if subscriber has recharged
+	 */
+	public boolean hasSubscriberHistory(String msisdn){
+		
+		return rechargedMsisdns != null && rechargedMsisdns.contains(msisdn);
+	}
+	
+	/**
+	 * Fetch fingerprint of the assessment inputs of subscriber.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @return input fingerprint or 0 if none was computed
+	 */
+	public long getInputFingerprint(String msisdn){
+		
+		Long inputFingerprint = inputFingerprints == null ? null : inputFingerprints.get(msisdn);
+		return inputFingerprint == null ? 0L : inputFingerprint;
+	}
+	
+	/**
+	 * Fetch pre-fetched SubscriberState document.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @return SubscriberState document or null if none exists
+	 */
+	public Document getSubscriberState(String msisdn){
+		
+		return subscriberStates.get(msisdn);
+	}
+	
+	/**
+	 * Check whether top-up history was pre-fetched.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @return true if {@link #getTopUpHistory(String)} holds the subscribers top-ups
+	 */
+	public boolean isTopUpHistoryFetched(String msisdn){
+		
+		return topUpHistoryMsisdns == null || topUpHistoryMsisdns.contains(msisdn);
+	}
+	
+	/**
+	 * Fetch pre-fetched top-up history.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @return {@link TopUpHistory}, empty if subscriber has no top-up within the window
+	 */
+	public TopUpHistory getTopUpHistory(String msisdn){
+		
+		TopUpHistory topUpHistory = topUpHistories.get(msisdn);
+		return topUpHistory == null ? TopUpHistory.empty() : topUpHistory;
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.nano.mongo_ras.documents;
+
+/**
+ * Number of SubscriberHistory documents and latest recharge_time of a subscriber, 
+ * enough to tell whether history changed since the last assessment.
+ * 
+ */
+public class HistorySummary {
+	
+	private final long count ;
+	
+	private final long latestRechargeTime ;
+
+	/**
+	 * @param count number of SubscriberHistory documents
+	 * @param latestRechargeTime latest recharge_time in milliseconds, 0 if unknown
+	 */
+	public HistorySummary(long count, 
+			long latestRechargeTime) {
+		
+		this.count = count;
+		this.latestRechargeTime = latestRechargeTime;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getLatestRechargeTime() {
+		return latestRechargeTime;
+	}
+
+}
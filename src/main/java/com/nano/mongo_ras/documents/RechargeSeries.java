@@ -0,0 +1,102 @@
+package com.nano.mongo_ras.documents;
+
+import java.util.Arrays;
+
+/**
+ * Compact per-subscriber recharge series decoded straight from SubscriberHistory by {@link RechargeSeriesCodec}.
+ * Recharge days are held as sorted epoch days with amounts in kobo at the same index.
+ * 
+ * Prefix sums are built once on construction so count and sum within any number of days 
+ * is a single binary search, whatever the number of tiers evaluated.
+ * 
+ */
+public class RechargeSeries implements TopUpHistory {
+	
+	private final String msisdn ;
+	private final int[] epochDays ;
+	private final long[] amounts ;
+	private final long[] prefixSums ;
+
+	/**
+	 * @param msisdn subscriber unique MSISDN
+	 * @param epochDays recharge days sorted ascending
+	 * @param amounts recharge amounts in kobo, aligned with epochDays
+	 */
+	public RechargeSeries(String msisdn, 
+			int[] epochDays, long[] amounts) {
+		
+		this.msisdn = msisdn;
+		this.epochDays = epochDays;
+		this.amounts = amounts;
+		
+		prefixSums = new long[amounts.length + 1];
+		for (int i = 0; i < amounts.length; i++)
+			prefixSums[i + 1] = prefixSums[i] + amounts[i];
+	}
+	
+	public String getMsisdn() {
+		return msisdn;
+	}
+	
+	public int size() {
+		return epochDays.length;
+	}
+	
+	public int getEpochDay(int index) {
+		return epochDays[index];
+	}
+	
+	public long getAmount(int index) {
+		return amounts[index];
+	}
+
+	@Override
+	public int countTopUpsWithin(int today, int days) {
+		
+		return epochDays.length - firstIndexOnOrAfter(today - days);
+	}
+
+	@Override
+	public long sumTopUpsWithin(int today, int days) {
+		
+		return prefixSums[epochDays.length] - prefixSums[firstIndexOnOrAfter(today - days)];
+	}
+
+	@Override
+	public int nextWindowExitDay(int today, int[] durations) {
+		
+		int exitDay = Integer.MAX_VALUE;
+		for (int days : durations) {
+			int index = firstIndexOnOrAfter(today - days);
+			if (index < epochDays.length)
+				exitDay = Math.min(exitDay, epochDays[index] + days + 1);
+		}
+		
+		return exitDay;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		
+		return epochDays.length == 0;
+	}
+	
+	/**
+	 * Lower bound of epochDay in the sorted recharge days.
+	 * 
+	 * @param epochDay first day within the duration
+	 * @return index of first recharge on or after epochDay
+	 */
+	private int firstIndexOnOrAfter(int epochDay){
+		
+		int index = Arrays.binarySearch(epochDays, epochDay);
+		if (index < 0)
+			return -index - 1;
+		
+		while (index > 0 && epochDays[index - 1] == epochDay)
+			index--;
+		
+		return index;
+	}
+
+}
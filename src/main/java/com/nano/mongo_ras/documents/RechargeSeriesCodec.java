@@ -0,0 +1,202 @@
+package com.nano.mongo_ras.documents;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Decode a grouped SubscriberHistory document <i>{_id: msisdn, t: [recharge_time...], a: [recharge_for_prepaid...]}</i> 
+ * directly into primitive arrays of a {@link RechargeSeries}, without an intermediate {@link org.bson.Document} or boxing.
+ * 
+ */
+public class RechargeSeriesCodec implements Codec<RechargeSeries> {
+	
+	public static final String RECHARGE_TIMES = "t";
+	public static final String RECHARGE_AMOUNTS = "a";
+	
+	/**
+	 * Added away from zero before truncating a naira double to kobo, so 0.29 * 100 = 28.999... reads as 29.
+	 * The aggregation in DocumentManager applies the same correction on the server.
+	 */
+	public static final double KOBO_EPSILON = 1e-6;
+	
+	private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+	
+	private final ZoneId zone ;
+	private final ZoneRules zoneRules ;
+	private final long fixedOffsetMillis ;
+	
+	/**
+	 * @param zone time zone recharge days are counted in, for both decoding and encoding
+	 */
+	public RechargeSeriesCodec(ZoneId zone) {
+		
+		this.zone = zone;
+		this.zoneRules = zone.getRules();
+		this.fixedOffsetMillis = zoneRules.isFixedOffset() ? zoneRules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L : 0L;
+	}
+
+	@Override
+	public RechargeSeries decode(BsonReader reader, 
+			DecoderContext decoderContext) {
+		
+		String msisdn = null;
+		int[] epochDays = new int[0];
+		long[] amounts = new long[0];
+		
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			if ("_id".equals(name) && reader.getCurrentBsonType() == BsonType.STRING)
+				msisdn = reader.readString();
+			else if (RECHARGE_TIMES.equals(name))
+				epochDays = readEpochDays(reader);
+			else if (RECHARGE_AMOUNTS.equals(name))
+				amounts = readAmounts(reader);
+			else
+				reader.skipValue();
+		}
+		reader.readEndDocument();
+		
+		if (amounts.length != epochDays.length)
+			throw new IllegalStateException("Recharge times and amounts are misaligned for msisdn:" + msisdn);
+		
+		sort(epochDays, amounts);
+		
+		return new RechargeSeries(msisdn, epochDays, amounts);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, 
+			RechargeSeries value, EncoderContext encoderContext) {
+		
+		writer.writeStartDocument();
+		writer.writeString("_id", value.getMsisdn());
+		
+		writer.writeStartArray(RECHARGE_TIMES);
+		for (int i = 0; i < value.size(); i++)
+			writer.writeDateTime(LocalDate.ofEpochDay(value.getEpochDay(i)).atStartOfDay(zone).toInstant().toEpochMilli());
+		writer.writeEndArray();
+		
+		writer.writeStartArray(RECHARGE_AMOUNTS);
+		for (int i = 0; i < value.size(); i++)
+			writer.writeDouble(value.getAmount(i) / 100D);
+		writer.writeEndArray();
+		
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<RechargeSeries> getEncoderClass() {
+		return RechargeSeries.class;
+	}
+	
+	private int[] readEpochDays(BsonReader reader){
+		
+		int[] values = new int[16];
+		int size = 0;
+		
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = toEpochDay(reader.readDateTime());
+		}
+		reader.readEndArray();
+		
+		return Arrays.copyOf(values, size);
+	}
+	
+	private long[] readAmounts(BsonReader reader){
+		
+		long[] values = new long[16];
+		int size = 0;
+		
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = readKobo(reader);
+		}
+		reader.readEndArray();
+		
+		return Arrays.copyOf(values, size);
+	}
+	
+	/**
+	 * Read a naira amount as kobo, truncating like BigDecimal.valueOf(amount).multiply(100).intValue().
+	 * 
+	 * @param reader positioned on a numeric value
+	 * @return amount in kobo
+	 */
+	private long readKobo(BsonReader reader){
+		
+		switch (reader.getCurrentBsonType()) {
+		case INT32:
+			return reader.readInt32() * 100L;
+		case INT64:
+			return reader.readInt64() * 100L;
+		case DECIMAL128:
+			return reader.readDecimal128().bigDecimalValue().movePointRight(2).longValue();
+		case DOUBLE:
+			double amount = reader.readDouble() * 100D;
+			return (long) (amount + Math.copySign(KOBO_EPSILON, amount));
+		default:
+			reader.skipValue();
+			return 0L;
+		}
+	}
+	
+	/**
+	 * Convert epoch millis to the epoch day in the codec time zone.
+	 * 
+	 * @param epochMillis recharge time
+	 * @return epoch day
+	 */
+	private int toEpochDay(long epochMillis){
+		
+		long offsetMillis = zoneRules.isFixedOffset() ? fixedOffsetMillis 
+				: zoneRules.getOffset(Instant.ofEpochMilli(epochMillis)).getTotalSeconds() * 1000L;
+		
+		return (int) Math.floorDiv(epochMillis + offsetMillis, MILLIS_PER_DAY);
+	}
+	
+	/**
+	 * Sort both arrays by day. Recharges usually arrive in time order, so the common case 
+	 * is a single linear check; otherwise day and original index are packed and sorted in O(n log n).
+	 * 
+	 * @param epochDays recharge days
+	 * @param amounts recharge amounts aligned with epochDays
+	 */
+	private void sort(int[] epochDays, long[] amounts){
+		
+		int i = 1;
+		while (i < epochDays.length && epochDays[i - 1] <= epochDays[i])
+			i++;
+		
+		if (i >= epochDays.length)
+			return;
+		
+		long[] keys = new long[epochDays.length];
+		for (int j = 0; j < keys.length; j++)
+			keys[j] = ((long) epochDays[j] << 32) | j;
+		Arrays.sort(keys);
+		
+		long[] originalAmounts = Arrays.copyOf(amounts, amounts.length);
+		for (int j = 0; j < keys.length; j++) {
+			epochDays[j] = (int) (keys[j] >> 32);
+			amounts[j] = originalAmounts[(int) keys[j]];
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.nano.mongo_ras.documents;
+
+import java.time.ZoneId;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * {@link CodecProvider} registering {@link RechargeSeriesCodec}.
+ * 
+ */
+public class RechargeSeriesCodecProvider implements CodecProvider {
+	
+	private final RechargeSeriesCodec rechargeSeriesCodec ;
+	
+	public RechargeSeriesCodecProvider(ZoneId zone) {
+		
+		rechargeSeriesCodec = new RechargeSeriesCodec(zone);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Codec<T> get(Class<T> clazz, 
+			CodecRegistry registry) {
+		
+		if (clazz == RechargeSeries.class)
+			return (Codec<T>) rechargeSeriesCodec;
+		
+		return null;
+	}
+
+}
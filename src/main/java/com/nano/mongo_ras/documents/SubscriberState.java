@@ -8,5 +8,6 @@ public enum SubscriberState {
 	blacklisted, 
 	last_updated, 
 	msisdn, 
+	first_recharge_time, 
 	;
 }
@@ -0,0 +1,50 @@
+package com.nano.mongo_ras.documents;
+
+/**
+ * Subscriber top-ups as needed by the RAS criteria: count and value of top-ups 
+ * within a number of days of today.
+ * 
+ */
+public interface TopUpHistory {
+	
+	/**
+	 * Count top-ups made within the specified number of days.
+	 * 
+	 * @param today epoch day the sweep treats as today
+	 * @param days criteria duration in days
+	 * @return number of top-ups
+	 */
+	int countTopUpsWithin(int today, int days);
+	
+	/**
+	 * Sum top-ups made within the specified number of days.
+	 * 
+	 * @param today epoch day the sweep treats as today
+	 * @param days criteria duration in days
+	 * @return top-up value in kobo
+	 */
+	long sumTopUpsWithin(int today, int days);
+	
+	/**
+	 * First day a top-up counted today drops out of one of the durations, 
+	 * counts and sums are unchanged before then unless the subscriber recharges.
+	 * 
+	 * @param today epoch day the sweep treats as today
+	 * @param durations sorted distinct criteria durations in days
+	 * @return epoch day or {@link Integer#MAX_VALUE} if no top-up is counted
+	 */
+	int nextWindowExitDay(int today, int[] durations);
+	
+	/**
+	 * @return true if there is no top-up within the history window
+	 */
+	boolean isEmpty();
+	
+	/**
+	 * @return history without any top-up
+	 */
+	static TopUpHistory empty(){
+		return AggregatedTopUpHistory.EMPTY;
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.nano.mongo_ras.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Heap bytes allocated by the assessing thread while criteria are evaluated, 
+ * read from {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} where the JVM supports it.
+ * 
+ */
+@ApplicationScoped
+public class AllocationStats {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	private final com.sun.management.ThreadMXBean threadMXBean;
+	
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder criteria = new LongAdder();
+	private final LongAdder subscribers = new LongAdder();
+	
+	public AllocationStats() {
+		
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = null;
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean 
+					&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()){
+				allocationBean = (com.sun.management.ThreadMXBean) bean;
+				allocationBean.setThreadAllocatedMemoryEnabled(true);
+			}
+		} catch (UnsupportedOperationException | SecurityException e) {
+			log.warn("thread allocation measurement unavailable - " + e.getMessage());
+			allocationBean = null;
+		}
+		this.threadMXBean = allocationBean;
+	}
+	
+	/**
+	 * Bytes allocated so far by current thread.
+	 * 
+	 * @return allocated bytes or -1 if measurement is unavailable
+	 */
+	public long threadAllocatedBytes(){
+		
+		return threadMXBean == null ? -1L : threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Record allocation of a subscribers criteria evaluation.
+	 * 
+	 * @param startBytes value of {@link #threadAllocatedBytes()} before evaluation
+	 * @param criteriaEvaluations number of criteria evaluated
+	 */
+	public void record(long startBytes, int criteriaEvaluations){
+		
+		if (startBytes < 0)
+			return;
+		
+		bytes.add(threadAllocatedBytes() - startBytes);
+		criteria.add(criteriaEvaluations);
+		subscribers.increment();
+	}
+	
+	@Override
+	public String toString() {
+		if (threadMXBean == null)
+			return "unavailable";
+		
+		long bytes = this.bytes.sum();
+		long criteria = this.criteria.sum();
+		long subscribers = this.subscribers.sum();
+		return bytes + " bytes over " + subscribers + " subscribers, " 
+				+ (subscribers == 0 ? 0 : bytes / subscribers) + " bytes/subscriber, " 
+				+ (criteria == 0 ? 0 : bytes / criteria) + " bytes/criterion";
+	}
+
+}
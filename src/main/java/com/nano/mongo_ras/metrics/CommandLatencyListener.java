@@ -0,0 +1,116 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * {@link CommandListener} keeping a latency histogram per collection (or per command name for commands 
+ * not bound to a collection, e.g. grantRolesToUser).
+ * Optionally counts reply bytes per collection and command; this re-encodes every reply, so it is meant 
+ * for comparison runs rather than normal sweeps.
+ * 
+ */
+public class CommandLatencyListener implements CommandListener {
+	
+	private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+	
+	private final ConcurrentMap<Integer, String> inflight = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AtomicLong> replyBytes = new ConcurrentHashMap<>();
+	private final AtomicLong failures = new AtomicLong();
+	
+	private final boolean measureReplyBytes ;
+	
+	public CommandLatencyListener(boolean measureReplyBytes) {
+		this.measureReplyBytes = measureReplyBytes;
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		
+		inflight.put(event.getRequestId(), targetOf(event.getCommandName(), event.getCommand()));
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		
+		String target = record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.MICROSECONDS));
+		
+		if (measureReplyBytes){
+			BasicOutputBuffer buffer = new BasicOutputBuffer();
+			CODEC.encode(new BsonBinaryWriter(buffer), event.getResponse(), EncoderContext.builder().build());
+			replyBytes.computeIfAbsent(target + "." + event.getCommandName(), key -> new AtomicLong()).addAndGet(buffer.getSize());
+		}
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		
+		failures.incrementAndGet();
+		record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.MICROSECONDS));
+	}
+	
+	public Map<String, LatencyHistogram> getHistograms() {
+		return histograms;
+	}
+	
+	public long getFailures() {
+		return failures.get();
+	}
+	
+	public Map<String, AtomicLong> getReplyBytes() {
+		return replyBytes;
+	}
+	
+	private String record(int requestId, String commandName, long micros){
+		
+		String target = inflight.remove(requestId);
+		if (target == null)
+			target = commandName;
+		
+		histograms.computeIfAbsent(target, key -> new LatencyHistogram()).record(micros);
+		return target;
+	}
+	
+	/**
+	 * Resolve the collection a command runs against.
+	 * 
+	 * @param commandName driver command name
+	 * @param command command document
+	 * @return collection name or command name
+	 */
+	private String targetOf(String commandName, BsonDocument command){
+		
+		BsonValue value = "getMore".equals(commandName) ? command.get("collection") : command.get(commandName);
+		if (value != null && value.isString())
+			return value.asString().getValue();
+		
+		return commandName;
+	}
+	
+	@Override
+	public String toString() {
+		
+		StringBuilder builder = new StringBuilder("failures=").append(getFailures());
+		histograms.forEach((target, histogram) -> builder.append("\n  ").append(target).append(": ").append(histogram));
+		replyBytes.forEach((target, bytes) -> builder.append("\n  ").append(target).append(" reply bytes: ").append(bytes.get()));
+		
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.nano.mongo_ras.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Samples checked-out connections and wait-queue depth of the Mongo connection pools.
+ * 
+ * mongo-java-driver 3.4 offers no public hook for a custom ConnectionPoolListener, 
+ * so this reads the statistics its built-in JMX ConnectionPoolListener publishes 
+ * under <i>org.mongodb.driver:type=ConnectionPool</i>.
+ * 
+ */
+public class ConnectionPoolMonitor {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+	
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger checkedOut = new AtomicInteger();
+	private final AtomicInteger waitQueue = new AtomicInteger();
+	private final AtomicInteger peakCheckedOut = new AtomicInteger();
+	private final AtomicInteger peakWaitQueue = new AtomicInteger();
+	
+	private volatile int maxSize ;
+	
+	/**
+	 * Read current pool statistics across all servers and update peaks.
+	 */
+	public void sample(){
+		
+		int currentSize = 0, currentCheckedOut = 0, currentWaitQueue = 0, currentMaxSize = 0;
+		
+		try {
+			Set<ObjectName> pools = mBeanServer.queryNames(new ObjectName("org.mongodb.driver:type=ConnectionPool,*"), null);
+			for (ObjectName pool : pools) {
+				currentSize += (Integer) mBeanServer.getAttribute(pool, "Size");
+				currentCheckedOut += (Integer) mBeanServer.getAttribute(pool, "CheckedOutCount");
+				currentWaitQueue += (Integer) mBeanServer.getAttribute(pool, "WaitQueueSize");
+				currentMaxSize += (Integer) mBeanServer.getAttribute(pool, "MaxSize");
+			}
+		} catch (Exception e) {
+			log.warn("Unable to sample mongo connection pool statistics", e);
+			return;
+		}
+		
+		size.set(currentSize);
+		checkedOut.set(currentCheckedOut);
+		waitQueue.set(currentWaitQueue);
+		maxSize = currentMaxSize;
+		peakCheckedOut.accumulateAndGet(currentCheckedOut, Math::max);
+		peakWaitQueue.accumulateAndGet(currentWaitQueue, Math::max);
+	}
+	
+	public int getSize() {
+		return size.get();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public int getCheckedOut() {
+		return checkedOut.get();
+	}
+	
+	public int getWaitQueue() {
+		return waitQueue.get();
+	}
+	
+	public int getPeakCheckedOut() {
+		return peakCheckedOut.get();
+	}
+	
+	public int getPeakWaitQueue() {
+		return peakWaitQueue.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "size=" + getSize() + "/" + getMaxSize() + ", checkedOut=" + getCheckedOut() + " (peak " + getPeakCheckedOut() 
+				+ "), waitQueue=" + getWaitQueue() + " (peak " + getPeakWaitQueue() + ")";
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import com.nano.mongo_ras.assess.Criterion;
+
+/**
+ * Evaluations and rejections per {@link Criterion} observed while probing tiers.
+ * Probes stop at the first rejection, so rates are conditional on the criteria ordered before.
+ * 
+ */
+@ApplicationScoped
+public class CriterionStats {
+	
+	private final LongAdder[] evaluated = newAdders();
+	private final LongAdder[] rejected = newAdders();
+	
+	/**
+	 * Record a criterion outcome.
+	 * 
+	 * @param criterion criterion evaluated
+	 * @param passed true if criterion passed
+	 */
+	public void record(Criterion criterion, boolean passed){
+		
+		evaluated[criterion.ordinal()].increment();
+		if (!passed)
+			rejected[criterion.ordinal()].increment();
+	}
+	
+	/**
+	 * Rejection rate of criterion, smoothed so unobserved criteria start at one half.
+	 * 
+	 * @param criterion criterion
+	 * @return rejection rate between 0 and 1
+	 */
+	public double getRejectionRate(Criterion criterion){
+		
+		return (rejected[criterion.ordinal()].sum() + 1d) / (evaluated[criterion.ordinal()].sum() + 2d);
+	}
+	
+	/**
+	 * @param criterion criterion
+	 * @return number of evaluations recorded
+	 */
+	public long getEvaluated(Criterion criterion){
+		return evaluated[criterion.ordinal()].sum();
+	}
+	
+	/**
+	 * @param criterion criterion
+	 * @return number of rejections recorded
+	 */
+	public long getRejected(Criterion criterion){
+		return rejected[criterion.ordinal()].sum();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Criterion criterion : Criterion.values()){
+			if (builder.length() > 0)
+				builder.append(", ");
+			builder.append(criterion).append(": ").append(getRejected(criterion)).append('/').append(getEvaluated(criterion));
+		}
+		return builder.toString();
+	}
+	
+	private static LongAdder[] newAdders(){
+		LongAdder[] adders = new LongAdder[Criterion.values().length];
+		for (int i = 0; i < adders.length; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+}
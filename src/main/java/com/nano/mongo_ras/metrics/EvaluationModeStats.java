@@ -0,0 +1,47 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Wall time spent fetching top-up data per evaluation mode: documents loaded into the JVM 
+ * versus server-side aggregation. Bytes transferred per mode are recorded by {@link CommandLatencyListener}
+ * under <i>subscriber_history.find/getMore</i> and <i>subscriber_history.aggregate</i>.
+ * 
+ */
+@ApplicationScoped
+public class EvaluationModeStats {
+	
+	private final LongAdder documentSubscribers = new LongAdder();
+	private final LongAdder documentNanos = new LongAdder();
+	private final LongAdder aggregateSubscribers = new LongAdder();
+	private final LongAdder aggregateNanos = new LongAdder();
+	
+	/**
+	 * Record a top-up fetch.
+	 * 
+	 * @param aggregate true if top-ups were aggregated on the server
+	 * @param subscribers number of subscribers fetched
+	 * @param nanos elapsed time in nanoseconds
+	 */
+	public void record(boolean aggregate, 
+			int subscribers, long nanos){
+		
+		(aggregate ? aggregateSubscribers : documentSubscribers).add(subscribers);
+		(aggregate ? aggregateNanos : documentNanos).add(nanos);
+	}
+	
+	@Override
+	public String toString() {
+		return "documents: " + describe(documentSubscribers.sum(), documentNanos.sum()) 
+				+ ", aggregate: " + describe(aggregateSubscribers.sum(), aggregateNanos.sum());
+	}
+	
+	private String describe(long subscribers, long nanos){
+		return subscribers + " subscribers in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms (" 
+				+ (subscribers == 0 ? 0 : nanos / subscribers / 1000) + "us/subscriber)";
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power-of-two microsecond buckets.
+ * Bucket i holds samples in [2^(i-1), 2^i) microseconds, bucket 0 holds sub-microsecond samples.
+ * 
+ */
+public class LatencyHistogram {
+	
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * Record a single sample.
+	 * 
+	 * @param micros elapsed time in microseconds
+	 */
+	public void record(long micros){
+		
+		int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros))
+			max = maxMicros.get();
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+	
+	public long getMeanMicros() {
+		long samples = count.get();
+		return samples == 0 ? 0 : totalMicros.get() / samples;
+	}
+	
+	/**
+	 * Upper bound of the bucket containing the requested percentile.
+	 * 
+	 * @param percentile value between 0 and 100
+	 * @return latency in microseconds
+	 */
+	public long getPercentileMicros(double percentile){
+		
+		long samples = count.get();
+		if (samples == 0)
+			return 0;
+		
+		long rank = (long) Math.ceil(samples * percentile / 100D);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return 1L << i;
+		}
+		
+		return maxMicros.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50<=" + getPercentileMicros(50) 
+				+ "us, p95<=" + getPercentileMicros(95) + "us, p99<=" + getPercentileMicros(99) + "us, max=" + getMaxMicros() + "us";
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Time the sweep waited for each MSISDN source page, reset when a sweep starts.
+ * With a prefetching source only fetches slower than processing show up.
+ * Mean latency of the first and last tenth of the pages is reported alongside the histogram, 
+ * with keyset pagination the two stay level however deep into the view the sweep gets.
+ * 
+ */
+@ApplicationScoped
+public class PageLatencyStats {
+	
+	private LatencyHistogram latency = new LatencyHistogram();
+	
+	private List<Long> pageMicros = new ArrayList<>();
+	
+	/**
+	 * Reset statistics for a new sweep.
+	 */
+	public synchronized void start(){
+		
+		latency = new LatencyHistogram();
+		pageMicros = new ArrayList<>();
+	}
+	
+	/**
+	 * Record a page fetch.
+	 * 
+	 * @param nanos elapsed time in nanoseconds
+	 */
+	public synchronized void record(long nanos){
+		
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		latency.record(micros);
+		pageMicros.add(micros);
+	}
+	
+	@Override
+	public synchronized String toString() {
+		
+		int tenth = Math.max(1, pageMicros.size() / 10);
+		return "pages: " + latency + ", first tenth mean=" + mean(0, Math.min(tenth, pageMicros.size())) 
+				+ "us, last tenth mean=" + mean(Math.max(0, pageMicros.size() - tenth), pageMicros.size()) + "us";
+	}
+	
+	private long mean(int from, int to){
+		
+		if (to <= from)
+			return 0;
+		
+		long total = 0;
+		for (int i = from; i < to; i++)
+			total += pageMicros.get(i);
+		
+		return total / (to - from);
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Counters of the sweep in progress, reset when a sweep starts and logged when it completes.
+ * Queue depth and utilisation of the pipeline stages are read live from the stages registered.
+ * 
+ */
+@ApplicationScoped
+public class SweepStatistics {
+	
+	private final LongAdder historyReads = new LongAdder();
+	private final LongAdder historyReadsAvoided = new LongAdder();
+	private final LongAdder assessmentsWritten = new LongAdder();
+	private final LongAdder writeTransactions = new LongAdder();
+	private final LongAdder outcomesChanged = new LongAdder();
+	private final LongAdder outcomes = new LongAdder();
+	private final LongAdder memoHits = new LongAdder();
+	
+	private final ConcurrentMap<String, IntSupplier> stageDepths = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, DoubleSupplier> stageUtilisations = new ConcurrentHashMap<>();
+	
+	/**
+	 * Reset counters for a new sweep.
+	 */
+	public void start(){
+		
+		historyReads.reset();
+		historyReadsAvoided.reset();
+		assessmentsWritten.reset();
+		writeTransactions.reset();
+		outcomesChanged.reset();
+		outcomes.reset();
+		memoHits.reset();
+	}
+	
+	/**
+	 * Record subscribers whose top-up history was read from mongo.
+	 * 
+	 * @param subscribers number of subscribers
+	 */
+	public void recordHistoryReads(int subscribers){
+		historyReads.add(subscribers);
+	}
+	
+	/**
+	 * Record subscribers whose top-up history was not read because cheaper criteria decided the outcome.
+	 * 
+	 * @param subscribers number of subscribers
+	 */
+	public void recordHistoryReadsAvoided(int subscribers){
+		historyReadsAvoided.add(subscribers);
+	}
+	
+	/**
+	 * Record assessments written.
+	 * 
+	 * @param assessments number of assessments written
+	 * @param transactions number of transactions committed
+	 */
+	public void recordWrites(int assessments, int transactions){
+		
+		assessmentsWritten.add(assessments);
+		writeTransactions.add(transactions);
+	}
+	
+	/**
+	 * Record assessment outcomes written, unchanged outcomes only have last processed time advanced.
+	 * 
+	 * @param changed number of assessments whose outcome changed
+	 * @param assessments number of assessments
+	 */
+	public void recordOutcomes(int changed, int assessments){
+		
+		outcomesChanged.add(changed);
+		outcomes.add(assessments);
+	}
+	
+	/**
+	 * Record subscribers not evaluated because their inputs and stored outcome were unchanged.
+	 * 
+	 * @param subscribers number of subscribers
+	 */
+	public void recordMemoHits(int subscribers){
+		memoHits.add(subscribers);
+	}
+	
+	/**
+	 * Register a pipeline stage whose queue depth and utilisation are reported.
+	 * 
+	 * @param stage stage name
+	 * @param depth current number of queued tasks
+	 * @param utilisation fraction of thread time spent running tasks since the sweep started
+	 */
+	public void registerStage(String stage, 
+			IntSupplier depth, DoubleSupplier utilisation){
+		
+		stageDepths.put(stage, depth);
+		stageUtilisations.put(stage, utilisation);
+	}
+	
+	/**
+	 * @return names of the registered pipeline stages
+	 */
+	public Set<String> getStages(){
+		return stageDepths.keySet();
+	}
+	
+	/**
+	 * @param stage stage name
+	 * @return tasks queued on the stage, 0 if no such stage is registered
+	 */
+	public int getStageDepth(String stage){
+		
+		IntSupplier depth = stageDepths.get(stage);
+		return depth == null ? 0 : depth.getAsInt();
+	}
+	
+	/**
+	 * @param stage stage name
+	 * @return fraction of thread time the stage spent running tasks since the sweep started, 0 if no such stage is registered
+	 */
+	public double getStageUtilisation(String stage){
+		
+		DoubleSupplier utilisation = stageUtilisations.get(stage);
+		return utilisation == null ? 0D : utilisation.getAsDouble();
+	}
+	
+	@Override
+	public String toString() {
+		long outcomes = this.outcomes.sum();
+		StringBuilder stages = new StringBuilder();
+		for (String stage : getStages())
+			stages.append(", ").append(stage).append(String.format(" depth=%d utilisation=%.1f%%", 
+					getStageDepth(stage), 100D * getStageUtilisation(stage)));
+		return "history reads: " + historyReads.sum() + ", history reads avoided: " + historyReadsAvoided.sum() 
+				+ ", memo hits: " + memoHits.sum() 
+				+ ", assessments written: " + assessmentsWritten.sum() + " in " + writeTransactions.sum() + " transactions" 
+				+ ", outcomes changed: " + outcomesChanged.sum() + "/" + outcomes 
+				+ String.format(" (%.1f%%)", outcomes == 0 ? 0d : 100d * outcomesChanged.sum() / outcomes) 
+				+ stages;
+	}
+
+}
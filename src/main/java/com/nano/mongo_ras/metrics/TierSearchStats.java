@@ -0,0 +1,45 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Criteria evaluations spent resolving the {@link com.nano.jpa.entity.ras.BorrowableAmount} tier per subscriber.
+ * Warm starts begin from the previous max borrowable amount, a hit means the tier did not change.
+ * 
+ */
+@ApplicationScoped
+public class TierSearchStats {
+	
+	private final LongAdder searches = new LongAdder();
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder warmStarts = new LongAdder();
+	private final LongAdder warmHits = new LongAdder();
+	
+	/**
+	 * Record a tier search.
+	 * 
+	 * @param evaluations number of tiers evaluated
+	 * @param warmStart true if search started from the previous tier
+	 * @param warmHit true if the previous tier was resolved again
+	 */
+	public void record(int evaluations, 
+			boolean warmStart, boolean warmHit){
+		
+		searches.increment();
+		this.evaluations.add(evaluations);
+		if (warmStart)
+			warmStarts.increment();
+		if (warmHit)
+			warmHits.increment();
+	}
+	
+	@Override
+	public String toString() {
+		long searches = this.searches.sum();
+		return searches + " searches, " + String.format("%.2f", searches == 0 ? 0d : (double) evaluations.sum() / searches) 
+				+ " evaluations/subscriber, warm starts: " + warmStarts.sum() + ", unchanged: " + warmHits.sum();
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.nano.mongo_ras.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Flush latency and batch sizes of the write-behind assessment sink.
+ * 
+ */
+@ApplicationScoped
+public class WriteBehindStats {
+	
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final AtomicInteger maxBatchSize = new AtomicInteger();
+	private final AtomicInteger maxBuffered = new AtomicInteger();
+	
+	/**
+	 * Record a completed flush.
+	 * 
+	 * @param batchSize rows in batch
+	 * @param nanos elapsed time in nanoseconds
+	 */
+	public void recordFlush(int batchSize, long nanos){
+		
+		flushLatency.record(nanos / 1000);
+		flushes.increment();
+		rows.add(batchSize);
+		maxBatchSize.accumulateAndGet(batchSize, Math::max);
+	}
+	
+	/**
+	 * Record a failed flush.
+	 */
+	public void recordFailure(){
+		failures.increment();
+	}
+	
+	/**
+	 * Record number of assessments waiting in the buffer.
+	 * 
+	 * @param buffered buffered assessments
+	 */
+	public void recordBuffered(int buffered){
+		maxBuffered.accumulateAndGet(buffered, Math::max);
+	}
+	
+	public LatencyHistogram getFlushLatency() {
+		return flushLatency;
+	}
+	
+	@Override
+	public String toString() {
+		long flushes = this.flushes.sum();
+		return flushes + " flushes, " + rows.sum() + " rows, mean batch " + (flushes == 0 ? 0 : rows.sum() / flushes) 
+				+ ", max batch " + maxBatchSize.get() + ", max buffered " + maxBuffered.get() + ", failures " + failures.sum() 
+				+ ", latency {" + flushLatency + "}";
+	}
+
+}
@@ -1,11 +1,16 @@
 package com.nano.mongo_ras.tools;
 
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.List;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
 import com.nano.jpa.entity.ras.BorrowableAmount;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -31,6 +36,79 @@ public class ApplicationBean {
 	private boolean assessBlacklistStatus = true ;
 	private boolean assessTarrifplan = true ;
 	
+	/**
+	 * Count and sum top-ups with a Mongo aggregation pipeline instead of loading history documents.
+	 */
+	private boolean aggregateTopUps = false ;
+	
 	private List<BorrowableAmount> borrowableAmounts ;
 	
+	@Inject
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private PropertiesManager props ;
+	
+	/**
+	 * Time zone days are counted in: the sweep day, history windows and recharge days (ras.time.zone).
+	 */
+	private ZoneId zone = ZoneId.systemDefault();
+	
+	/**
+	 * Epoch day fixed at the start of a sweep and used as today by every assessment in it.
+	 */
+	private volatile int sweepEpochDay ;
+	
+	@PostConstruct
+	public void init() {
+		
+		zone = ZoneId.of(props.getProperty("ras.time.zone", ZoneId.systemDefault().getId()));
+	}
+	
+	/**
+	 * Fix today for the sweep about to start.
+	 */
+	public void startSweepDay() {
+		
+		sweepEpochDay = (int) LocalDate.now(zone).toEpochDay();
+	}
+	
+	/**
+	 * Epoch day treated as today by the current sweep.
+	 * 
+	 * @return sweep epoch day, or today if no sweep has started
+	 */
+	public int getSweepDay() {
+		
+		int epochDay = sweepEpochDay;
+		return epochDay == 0 ? (int) LocalDate.now(zone).toEpochDay() : epochDay;
+	}
+	
+	/**
+	 * Widest top-up duration across the loaded {@link BorrowableAmount} criteria.
+	 * History older than this is never read by the assessment.
+	 * 
+	 * @return duration in days
+	 */
+	public int getMaxTopUpsDuration() {
+		
+		int[] durations = getTopUpsDurations();
+		return durations.length == 0 ? 0 : durations[durations.length - 1];
+	}
+	
+	/**
+	 * Distinct top-up durations across the loaded {@link BorrowableAmount} criteria.
+	 * 
+	 * @return sorted durations in days
+	 */
+	public int[] getTopUpsDurations() {
+		
+		if (borrowableAmounts == null)
+			return new int[0];
+		
+		return borrowableAmounts.stream()
+				.filter(borrowableAmount -> borrowableAmount.getCriteria() != null && borrowableAmount.getCriteria().getMinTopUpsDuration() != null)
+				.mapToInt(borrowableAmount -> borrowableAmount.getCriteria().getMinTopUpsDuration())
+				.distinct().sorted().toArray();
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package com.nano.mongo_ras.tools;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.jboss.logging.Logger;
+
+import com.nano.jpa.entity.ras.SmsMessage;
+import com.nano.jpa.entity.ras.SubscriberAssessment;
+
+/**
+ * Set based JDBC statements against the nano-jpa datasource for writes too large to merge entity by entity.
+ * Statements bypass the persistence context, Envers does not audit them, so they only advance bookkeeping columns 
+ * and fingerprints. Changed assessments are still persisted or merged through the {@link EntityManager}, 
+ * so they are audited and keys come from the entity's own generator.
+ * Tables and unique indexes the statements rely on are created by META-INF/sql/ras-indexes.sql, not at runtime.
+ * 
+ */
+@Stateless
+public class BatchQueries {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	// columns the statements use, checked against the database before the JDBC sink is enabled
+	private static final String[] ASSESSMENT_COLUMNS = {"subscriber", "age_on_network", "last_processed"};
+	private static final String[] FINGERPRINT_COLUMNS = {"subscriber", "fingerprint", "input_fingerprint", "stable_until"};
+	
+	private static final String ASSESSMENT_TOUCH = "UPDATE subscriber_assessment a SET last_processed = t.last_processed, " 
+			+ "age_on_network = t.age_on_network FROM unnest(?::bigint[], ?::timestamp[], ?::int[]) " 
+			+ "AS t(subscriber, last_processed, age_on_network) WHERE a.subscriber = t.subscriber";
+	
+	private static final String FINGERPRINT_SELECT = "SELECT subscriber, fingerprint, input_fingerprint, stable_until " 
+			+ "FROM subscriber_assessment_fingerprint WHERE subscriber = ANY(?::bigint[])";
+	
+	private static final String FINGERPRINT_UPSERT = "INSERT INTO subscriber_assessment_fingerprint (subscriber, fingerprint, " 
+			+ "input_fingerprint, stable_until) VALUES (?, ?, ?, ?) ON CONFLICT (subscriber) DO UPDATE SET fingerprint = EXCLUDED.fingerprint, " 
+			+ "input_fingerprint = EXCLUDED.input_fingerprint, stable_until = EXCLUDED.stable_until";
+	
+	private static final String FINGERPRINT_DELETE = "DELETE FROM subscriber_assessment_fingerprint WHERE subscriber = ?";
+	
+	@Resource(lookup = "java:/jdbc/XADB")
+	private DataSource dataSource ;
+	
+	@PersistenceContext(unitName = "nano-jpa")
+	private EntityManager entityManager ;
+	
+	/**
+	 * Check the subscriber_assessment columns written through JDBC and the subscriber_assessment_fingerprint 
+	 * side table, created by the migration, against the database.
+	 * 
+	 * @return true if schema is in place
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public boolean ensureAssessmentSchema(){
+		
+		try (Connection connection = dataSource.getConnection()) {
+			return hasColumns(connection, "subscriber_assessment", ASSESSMENT_COLUMNS) 
+					&& hasColumns(connection, "subscriber_assessment_fingerprint", FINGERPRINT_COLUMNS);
+		} catch (SQLException e) {
+			log.error("Unable to verify subscriber_assessment schema", e);
+		}
+		
+		return false;
+	}
+	
+	private boolean hasColumns(Connection connection, 
+			String table, String[] required) throws SQLException {
+		
+		Map<String, Integer> columns = getColumnTypes(connection, table);
+		List<String> missing = new ArrayList<>();
+		for (String column : required)
+			if (!columns.containsKey(column))
+				missing.add(column);
+		
+		if (!missing.isEmpty())
+			log.fatal(table + " has no column " + missing + ", apply META-INF/sql/ras-indexes.sql before enabling the JDBC sink");
+		
+		return missing.isEmpty();
+	}
+	
+	/**
+	 * Read the column types of a table in the current schema.
+	 * 
+	 * @param connection open connection
+	 * @param table table name
+	 * @return {@link Types} keyed by lower case column name, empty if table does not exist
+	 * @throws SQLException if metadata cannot be read
+	 */
+	private Map<String, Integer> getColumnTypes(Connection connection, 
+			String table) throws SQLException {
+		
+		Map<String, Integer> columns = new HashMap<>();
+		DatabaseMetaData metaData = connection.getMetaData();
+		try (ResultSet resultSet = metaData.getColumns(null, connection.getSchema(), table, null)) {
+			while (resultSet.next())
+				columns.put(resultSet.getString("COLUMN_NAME").toLowerCase(), resultSet.getInt("DATA_TYPE"));
+		}
+		
+		return columns;
+	}
+	
+	/**
+	 * Fetch input fingerprint and stable until day recorded with the last assessment of subscribers.
+	 * 
+	 * @param subscribers {@link com.nano.jpa.entity.Subscriber} keys
+	 * @return input fingerprint and stable until epoch day keyed by subscriber, only for subscribers with a record
+	 * @throws SQLException if query fails
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Map<Long, long[]> getInputMemos(List<Long> subscribers) throws SQLException {
+		
+		Map<Long, long[]> inputMemos = new HashMap<>();
+		try (Connection connection = dataSource.getConnection()) {
+			for (Map.Entry<Long, long[]> entry : getFingerprints(connection, subscribers.toArray(new Long[subscribers.size()])).entrySet())
+				inputMemos.put(entry.getKey(), new long[] {entry.getValue()[1], entry.getValue()[2]});
+		}
+		
+		return inputMemos;
+	}
+	
+	/**
+	 * Write assessments in a new transaction, skipping those whose outcome fingerprint is unchanged.
+	 * Changed assessments and their {@link SmsMessage} are persisted or merged through the {@link EntityManager}, 
+	 * so outcome changes are audited and keys come from the entity generators.
+	 * Unchanged assessments only have last processed time and age on network advanced in one bulk JDBC update.
+	 * Fingerprints, input fingerprints and stable until days of every assessment are recorded.
+	 * 
+	 * @param subscriberAssessments final assessments, at most one per subscriber
+	 * @param fingerprints outcome fingerprint of each assessment
+	 * @param inputFingerprints input fingerprint of each assessment, 0 if not computed
+	 * @param stableUntil epoch day outcome may change without new input, per assessment
+	 * @return number of assessments whose outcome changed
+	 * @throws SQLException if batch fails
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int writeAssessments(List<SubscriberAssessment> subscriberAssessments, 
+			long[] fingerprints, long[] inputFingerprints, int[] stableUntil) throws SQLException {
+		
+		Long[] subscribers = new Long[subscriberAssessments.size()];
+		for (int i = 0; i < subscribers.length; i++)
+			subscribers[i] = getSubscriberPk(subscriberAssessments.get(i));
+		
+		try (Connection connection = dataSource.getConnection()) {
+			Map<Long, long[]> storedFingerprints = getFingerprints(connection, subscribers);
+			
+			List<SubscriberAssessment> changed = new ArrayList<>();
+			List<SubscriberAssessment> unchanged = new ArrayList<>();
+			for (int i = 0; i < subscriberAssessments.size(); i++) {
+				long[] stored = storedFingerprints.get(subscribers[i]);
+				if (stored != null && stored[0] == fingerprints[i])
+					unchanged.add(subscriberAssessments.get(i));
+				else
+					changed.add(subscriberAssessments.get(i));
+			}
+			
+			if (!changed.isEmpty())
+				updateAssessments(changed);
+			
+			if (!unchanged.isEmpty())
+				touchAssessments(connection, unchanged);
+			
+			upsertFingerprints(connection, subscribers, fingerprints, inputFingerprints, stableUntil);
+			
+			return changed.size();
+		}
+	}
+	
+	/**
+	 * Merge a single assessment in a new transaction and drop its fingerprints in the same transaction, 
+	 * so a later sweep neither skips its write nor its evaluation on fingerprints recorded before this write.
+	 * 
+	 * @param subscriberAssessment final assessment
+	 * @throws SQLException if fingerprints cannot be dropped
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void writeAssessment(SubscriberAssessment subscriberAssessment) throws SQLException {
+		
+		entityManager.merge(subscriberAssessment);
+		entityManager.flush();
+		
+		try (Connection connection = dataSource.getConnection(); 
+				PreparedStatement statement = connection.prepareStatement(FINGERPRINT_DELETE)) {
+			statement.setLong(1, getSubscriberPk(subscriberAssessment));
+			statement.executeUpdate();
+		}
+	}
+	
+	private Map<Long, long[]> getFingerprints(Connection connection, 
+			Long[] subscribers) throws SQLException {
+		
+		Map<Long, long[]> fingerprints = new HashMap<>();
+		try (PreparedStatement statement = connection.prepareStatement(FINGERPRINT_SELECT)) {
+			statement.setArray(1, connection.createArrayOf("bigint", subscribers));
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next())
+					fingerprints.put(resultSet.getLong(1), new long[] {resultSet.getLong(2), resultSet.getLong(3), resultSet.getInt(4)});
+			}
+		}
+		
+		return fingerprints;
+	}
+	
+	private void upsertFingerprints(Connection connection, Long[] subscribers, 
+			long[] fingerprints, long[] inputFingerprints, int[] stableUntil) throws SQLException {
+		
+		try (PreparedStatement statement = connection.prepareStatement(FINGERPRINT_UPSERT)) {
+			for (int i = 0; i < subscribers.length; i++) {
+				statement.setLong(1, subscribers[i]);
+				statement.setLong(2, fingerprints[i]);
+				statement.setLong(3, inputFingerprints[i]);
+				statement.setInt(4, stableUntil[i]);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+	
+	private void touchAssessments(Connection connection, 
+			List<SubscriberAssessment> subscriberAssessments) throws SQLException {
+		
+		Long[] subscribers = new Long[subscriberAssessments.size()];
+		Timestamp[] lastProcessed = new Timestamp[subscribers.length];
+		Integer[] ageOnNetwork = new Integer[subscribers.length];
+		for (int i = 0; i < subscribers.length; i++) {
+			SubscriberAssessment subscriberAssessment = subscriberAssessments.get(i);
+			subscribers[i] = getSubscriberPk(subscriberAssessment);
+			lastProcessed[i] = subscriberAssessment.getLastProcessed() == null ? null 
+					: new Timestamp(subscriberAssessment.getLastProcessed().getTime());
+			ageOnNetwork[i] = subscriberAssessment.getAgeOnNetwork();
+		}
+		
+		try (PreparedStatement statement = connection.prepareStatement(ASSESSMENT_TOUCH)) {
+			statement.setArray(1, connection.createArrayOf("bigint", subscribers));
+			statement.setArray(2, connection.createArrayOf("timestamp", lastProcessed));
+			statement.setArray(3, connection.createArrayOf("int4", ageOnNetwork));
+			statement.executeUpdate();
+		}
+	}
+	
+	private void updateAssessments(List<SubscriberAssessment> subscriberAssessments){
+		
+		for (SubscriberAssessment subscriberAssessment : subscriberAssessments) {
+			SmsMessage smsMessage = subscriberAssessment.getSmsMessage();
+			if (smsMessage != null){
+				if (isTransient(smsMessage.getPk()))
+					entityManager.persist(smsMessage);
+				else
+					subscriberAssessment.setSmsMessage(entityManager.merge(smsMessage));
+			}
+			
+			if (isTransient(subscriberAssessment.getPk()))
+				entityManager.persist(subscriberAssessment);
+			else
+				entityManager.merge(subscriberAssessment);
+		}
+		entityManager.flush();
+	}
+	
+	private Long getSubscriberPk(SubscriberAssessment subscriberAssessment){
+		return subscriberAssessment.getSubscriber().getPk();
+	}
+	
+	private boolean isTransient(Long pk){
+		return pk == null || pk == 0L;
+	}
+
+}
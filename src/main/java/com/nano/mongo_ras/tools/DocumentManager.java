@@ -2,20 +2,40 @@ package com.nano.mongo_ras.tools;
 
 import java.math.BigDecimal;
 import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.jboss.logging.Logger;
 
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import com.nano.mongo_ras.documents.AggregatedTopUpHistory;
 import com.nano.mongo_ras.documents.AppDocuments;
+import com.nano.mongo_ras.documents.DocumentBatch;
+import com.nano.mongo_ras.documents.HistorySummary;
+import com.nano.mongo_ras.documents.RechargeSeries;
+import com.nano.mongo_ras.documents.RechargeSeriesCodec;
 import com.nano.mongo_ras.documents.SubscriberHistory;
 import com.nano.mongo_ras.documents.SubscriberState;
+import com.nano.mongo_ras.documents.TopUpHistory;
 
 @Stateless
 public class DocumentManager {
@@ -24,6 +44,12 @@ public class DocumentManager {
 
 	@Inject
 	private MongoManager mongoManager ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Inject
+	private ApplicationBean applicationBean ;
 
 	/**
 	 * Fetch SubscriberState document by MSISDN.
@@ -63,6 +89,273 @@ public class DocumentManager {
 		return Collections.emptyList();
 	}
 
+	/**
+	 * Check if any SubscriberHistory document exists for MSISDN.
+	 *
+	 * @param msisdn subscriber unique MSISDN
+	 * @return true if subscriber has at least one history document
+	 */
+	public boolean hasSubscriberHistory(String msisdn){
+
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+
+		Document filter = new Document(SubscriberHistory.msisdn.name(), msisdn);
+
+		return mongoCollection.find(filter).projection(Projections.fields(Projections.include(SubscriberHistory.msisdn.name()), Projections.excludeId()))
+				.limit(1).first() != null;
+	}
+	
+	/**
+	 * Find which of a batch of MSISDNs have any SubscriberHistory document, 
+	 * one distinct over the {msisdn, recharge_time} index per $in chunk.
+	 *
+	 * @param msisdns subscriber unique MSISDNs
+	 * @return MSISDNs with at least one history document
+	 */
+	public Set<String> getMsisdnsWithHistory(List<String> msisdns){
+
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+		Set<String> rechargedMsisdns = new HashSet<>(msisdns.size() * 2);
+
+		for (List<String> chunk : chunk(msisdns))
+			mongoCollection.distinct(SubscriberHistory.msisdn.name(), Filters.in(SubscriberHistory.msisdn.name(), chunk), String.class)
+				.into(rechargedMsisdns);
+
+		return rechargedMsisdns;
+	}
+	
+	/**
+	 * Fetch {@link TopUpHistory} of a subscriber.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @param durations sorted distinct criteria durations in days
+	 * @param aggregate true to aggregate top-ups on the server, false to fetch windowed documents
+	 * @return {@link TopUpHistory}
+	 */
+	public TopUpHistory getTopUpHistoryByMsisdn(String msisdn, 
+			int[] durations, boolean aggregate){
+		
+		if (aggregate)
+			return aggregateTopUpsByMsisdns(Collections.singletonList(msisdn), durations).getOrDefault(msisdn, TopUpHistory.empty());
+		
+		RechargeSeries rechargeSeries = getRechargeSeriesByMsisdns(Collections.singletonList(msisdn), max(durations)).get(msisdn);
+		return rechargeSeries == null ? TopUpHistory.empty() : rechargeSeries;
+	}
+	
+	/**
+	 * Fetch SubscriberState documents and top-up histories for a batch of MSISDNs.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @param durations sorted distinct criteria durations in days
+	 * @param aggregate true to aggregate top-ups on the server, false to fetch windowed documents
+	 * @return {@link DocumentBatch}
+	 */
+	public DocumentBatch getDocumentBatch(List<String> msisdns, 
+			int[] durations, boolean aggregate){
+		
+		return new DocumentBatch(getSubscriberStateByMsisdns(msisdns), getTopUpHistoryByMsisdns(msisdns, durations, aggregate));
+	}
+	
+	/**
+	 * Fetch top-up histories for a batch of MSISDNs.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @param durations sorted distinct criteria durations in days
+	 * @param aggregate true to aggregate top-ups on the server, false to fetch windowed documents
+	 * @return {@link TopUpHistory} keyed by MSISDN, only for subscribers with a top-up within the window
+	 */
+	public Map<String, ? extends TopUpHistory> getTopUpHistoryByMsisdns(List<String> msisdns, 
+			int[] durations, boolean aggregate){
+		
+		if (msisdns.isEmpty())
+			return Collections.emptyMap();
+		
+		return aggregate ? aggregateTopUpsByMsisdns(msisdns, durations) 
+				: getRechargeSeriesByMsisdns(msisdns, max(durations));
+	}
+	
+	/**
+	 * Fetch windowed top-ups for a batch of MSISDNs as {@link RechargeSeries}, one aggregation pipeline per $in chunk.
+	 * History is grouped per MSISDN on the server and decoded by {@link RechargeSeriesCodec} straight into primitive arrays.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @param windowDays widest criteria top-up duration in days
+	 * @return {@link RechargeSeries} keyed by MSISDN, only for subscribers with a top-up within the window
+	 */
+	public Map<String, RechargeSeries> getRechargeSeriesByMsisdns(List<String> msisdns, 
+			int windowDays){
+		
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+		Map<String, RechargeSeries> rechargeSeries = new HashMap<>(msisdns.size() * 2);
+		Date windowStart = getWindowStart(windowDays);
+		
+		BsonField rechargeTimes = Accumulators.push(RechargeSeriesCodec.RECHARGE_TIMES, "$" + SubscriberHistory.recharge_time.name());
+		BsonField rechargeAmounts = Accumulators.push(RechargeSeriesCodec.RECHARGE_AMOUNTS, 
+				new Document("$ifNull", Arrays.asList("$" + SubscriberHistory.recharge_for_prepaid.name(), 0)));
+		
+		for (List<String> chunk : chunk(msisdns)) {
+			List<Bson> pipeline = Arrays.asList(
+					Aggregates.match(Filters.and(Filters.in(SubscriberHistory.msisdn.name(), chunk), 
+							Filters.gte(SubscriberHistory.recharge_time.name(), windowStart))), 
+					Aggregates.group("$" + SubscriberHistory.msisdn.name(), rechargeTimes, rechargeAmounts));
+			
+			for (RechargeSeries series : mongoCollection.aggregate(pipeline, RechargeSeries.class).allowDiskUse(true).batchSize(chunk.size()))
+				rechargeSeries.put(series.getMsisdn(), series);
+		}
+		
+		return rechargeSeries;
+	}
+	
+	/**
+	 * Count and sum top-ups per criteria duration on the server with one aggregation pipeline per $in chunk.
+	 * Only subscribers with a top-up within the widest duration are returned.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @param durations sorted distinct criteria durations in days
+	 * @return {@link AggregatedTopUpHistory} keyed by MSISDN
+	 */
+	public Map<String, TopUpHistory> aggregateTopUpsByMsisdns(List<String> msisdns, 
+			int[] durations){
+		
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+		Map<String, TopUpHistory> topUpHistories = new HashMap<>(msisdns.size() * 2);
+		
+		if (durations.length == 0)
+			return topUpHistories;
+		
+		String rechargeTime = "$" + SubscriberHistory.recharge_time.name();
+		String rechargeAmount = "$" + SubscriberHistory.recharge_for_prepaid.name();
+		// kobo truncated with the same epsilon as RechargeSeriesCodec, so both modes agree at the thresholds
+		Document amount = new Document("$trunc", new Document("$add", Arrays.asList(
+				new Document("$multiply", Arrays.asList(rechargeAmount, 100)), 
+				new Document("$cond", Arrays.asList(new Document("$gte", Arrays.asList(rechargeAmount, 0)), 
+						RechargeSeriesCodec.KOBO_EPSILON, -RechargeSeriesCodec.KOBO_EPSILON)))));
+		
+		List<BsonField> accumulators = new ArrayList<>(durations.length * 2);
+		for (int duration : durations) {
+			Document withinDuration = new Document("$gte", Arrays.asList(rechargeTime, getWindowStart(duration)));
+			accumulators.add(new BsonField("c" + duration, new Document("$sum", new Document("$cond", Arrays.asList(withinDuration, 1, 0)))));
+			accumulators.add(new BsonField("s" + duration, new Document("$sum", new Document("$cond", Arrays.asList(withinDuration, amount, 0)))));
+		}
+		
+		Date windowStart = getWindowStart(max(durations));
+		
+		for (List<String> chunk : chunk(msisdns)) {
+			List<Bson> pipeline = Arrays.asList(
+					Aggregates.match(Filters.and(Filters.in(SubscriberHistory.msisdn.name(), chunk), 
+							Filters.gte(SubscriberHistory.recharge_time.name(), windowStart))), 
+					Aggregates.group("$" + SubscriberHistory.msisdn.name(), accumulators));
+			
+			for (Document totals : mongoCollection.aggregate(pipeline).batchSize(chunk.size())) {
+				int[] counts = new int[durations.length];
+				long[] sums = new long[durations.length];
+				for (int i = 0; i < durations.length; i++) {
+					counts[i] = ((Number) totals.get("c" + durations[i])).intValue();
+					sums[i] = ((Number) totals.get("s" + durations[i])).longValue();
+				}
+				topUpHistories.put(totals.getString("_id"), new AggregatedTopUpHistory(durations, counts, sums));
+			}
+		}
+		
+		return topUpHistories;
+	}
+	
+	/**
+	 * Count SubscriberHistory documents and find the latest recharge_time per MSISDN, 
+	 * grouped on the server over the {msisdn, recharge_time} index.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @return {@link HistorySummary} keyed by MSISDN, only for subscribers with history
+	 */
+	public Map<String, HistorySummary> getHistorySummaryByMsisdns(List<String> msisdns){
+		
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+		Map<String, HistorySummary> historySummaries = new HashMap<>(msisdns.size() * 2);
+		
+		for (List<String> chunk : chunk(msisdns)) {
+			List<Bson> pipeline = Arrays.asList(
+					Aggregates.match(Filters.in(SubscriberHistory.msisdn.name(), chunk)), 
+					Aggregates.project(Projections.fields(Projections.excludeId(), 
+							Projections.include(SubscriberHistory.msisdn.name(), SubscriberHistory.recharge_time.name()))), 
+					Aggregates.group("$" + SubscriberHistory.msisdn.name(), 
+							Accumulators.sum("n", 1), 
+							Accumulators.max("t", "$" + SubscriberHistory.recharge_time.name())));
+			
+			for (Document summary : mongoCollection.aggregate(pipeline).batchSize(chunk.size())) {
+				Date latest = summary.getDate("t");
+				historySummaries.put(summary.getString("_id"), 
+						new HistorySummary(((Number) summary.get("n")).longValue(), latest == null ? 0L : latest.getTime()));
+			}
+		}
+		
+		return historySummaries;
+	}
+	
+	/**
+	 * Fetch SubscriberState documents for a batch of MSISDNs with chunked $in queries.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @return SubscriberState documents keyed by MSISDN
+	 */
+	public Map<String, Document> getSubscriberStateByMsisdns(List<String> msisdns){
+		
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_state.name());
+		Map<String, Document> subscriberStates = new HashMap<>(msisdns.size() * 2);
+		
+		for (List<String> chunk : chunk(msisdns)) {
+			for (Document subscriberState : mongoCollection.find(Filters.in(SubscriberState.msisdn.name(), chunk)))
+				subscriberStates.putIfAbsent(subscriberState.getString(SubscriberState.msisdn.name()), subscriberState);
+		}
+		
+		return subscriberStates;
+	}
+	
+	
+	/**
+	 * Fields of SubscriberHistory read by the RAS criteria.
+	 * 
+	 * @return projection document
+	 */
+	private Bson getHistoryProjection(){
+		
+		return Projections.fields(Projections.include(SubscriberHistory.msisdn.name(), 
+				SubscriberHistory.recharge_time.name(), SubscriberHistory.recharge_for_prepaid.name()), Projections.excludeId());
+	}
+	
+	/**
+	 * Start of the oldest day that still falls within the window of the current sweep day, 
+	 * matching the day arithmetic of the criteria.
+	 * 
+	 * @param windowDays window size in days
+	 * @return window start date
+	 */
+	private Date getWindowStart(int windowDays){
+		
+		return Date.from(LocalDate.ofEpochDay(applicationBean.getSweepDay() - windowDays).atStartOfDay(applicationBean.getZone()).toInstant());
+	}
+	
+	private int max(int[] durations){
+		
+		return durations.length == 0 ? 0 : durations[durations.length - 1];
+	}
+	
+	/**
+	 * Split MSISDN list into chunks sized for $in queries.
+	 * 
+	 * @param msisdns subscriber unique MSISDNs
+	 * @return list of chunks
+	 */
+	private List<List<String>> chunk(List<String> msisdns){
+		
+		int chunkSize = props.getInt("mongodb.in.chunk.size", 1000);
+		List<List<String>> chunks = new ArrayList<>();
+		
+		for (int i = 0; i < msisdns.size(); i += chunkSize)
+			chunks.add(msisdns.subList(i, Math.min(msisdns.size(), i + chunkSize)));
+		
+		return chunks;
+	}
+
 	/**
 	 * Fetch earliest Time stamp from SubscriberHistory documents by MSIDN property.
 	 *
@@ -78,8 +371,8 @@ public class DocumentManager {
 		Document subscriberHistory = null;
 
 		try {
-			subscriberHistory = mongoCollection.find(filter).sort(sort).limit(1).first();
-			return (Timestamp) subscriberHistory.get(SubscriberHistory.recharge_time.name());
+			subscriberHistory = mongoCollection.find(filter).projection(getHistoryProjection()).sort(sort).limit(1).first();
+			return new Timestamp(subscriberHistory.getDate(SubscriberHistory.recharge_time.name()).getTime());
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			log.error("", e);
@@ -88,6 +381,21 @@ public class DocumentManager {
 		return null;
 	}
 
+	/**
+	 * Record derived first recharge time on SubscriberState document.
+	 * 
+	 * @param msisdn subscriber unique MSISDN
+	 * @param firstRechargeTime earliest recharge time of subscriber
+	 */
+	public void updateFirstRechargeTime(String msisdn, 
+			Date firstRechargeTime){
+		
+		MongoCollection<Document> mongoCollection = mongoManager.getCollectionConnection(AppDocuments.subscriber_state.name());
+		
+		mongoCollection.updateOne(Filters.eq(SubscriberState.msisdn.name(), msisdn), 
+				Updates.set(SubscriberState.first_recharge_time.name(), firstRechargeTime));
+	}
+
 	/**
 	 * Create {@link SubscriberState}.
 	 * 
@@ -0,0 +1,232 @@
+package com.nano.mongo_ras.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+
+import org.bson.Document;
+import org.jboss.logging.Logger;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.nano.mongo_ras.documents.AppDocuments;
+import com.nano.mongo_ras.documents.SubscriberHistory;
+import com.nano.mongo_ras.documents.SubscriberState;
+
+/**
+ * Provision the Mongo indexes required by {@link DocumentManager} queries on startup 
+ * and confirm with explain() that none of those queries falls back to a collection scan.
+ * 
+ * Sweeps must not start until {@link #isVerified()} returns true.
+ * 
+ */
+
+@Startup
+@Singleton
+public class IndexManager {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	private static final String COLLSCAN = "COLLSCAN";
+	private static final String SAMPLE_MSISDN = "0";
+	
+	@Inject
+	private MongoManager mongoManager ;
+	
+	private volatile boolean verified ;
+	
+	@PostConstruct
+	public void init(){
+		
+		ensureIndexes();
+		verifyQueryPlans();
+	}
+	
+	/**
+	 * Create any missing required index. Indexes are built in the background.
+	 */
+	public void ensureIndexes(){
+		
+		MongoCollection<Document> subscriberHistory = mongoManager.getCollectionConnection(AppDocuments.subscriber_history.name());
+		MongoCollection<Document> subscriberState = mongoManager.getCollectionConnection(AppDocuments.subscriber_state.name());
+		
+		try {
+			if (!hasIndex(subscriberHistory, new Document(SubscriberHistory.msisdn.name(), 1).append(SubscriberHistory.recharge_time.name(), 1), false)){
+				log.info("Creating index {msisdn:1, recharge_time:1} on " + AppDocuments.subscriber_history.name());
+				mongoManager.createCompoundIndex(subscriberHistory, SubscriberHistory.msisdn.name(), SubscriberHistory.recharge_time.name());
+			}
+			
+			Document stateKeys = new Document(SubscriberState.msisdn.name(), 1);
+			if (hasIndex(subscriberState, stateKeys, false) && !hasIndex(subscriberState, stateKeys, true)){
+				log.fatal("Non-unique index {msisdn:1} exists on " + AppDocuments.subscriber_state.name() 
+						+ ", drop it so it can be rebuilt as unique");
+			} else if (!hasIndex(subscriberState, stateKeys, true)){
+				log.info("Creating unique index {msisdn:1} on " + AppDocuments.subscriber_state.name());
+				mongoManager.createUniqueConstraint(subscriberState, SubscriberState.msisdn.name());
+			}
+		} catch (MongoException e) {
+			log.fatal("Unable to provision required mongo indexes", e);
+		}
+	}
+	
+	/**
+	 * Explain every {@link DocumentManager} query shape and flag any plan containing a COLLSCAN stage.
+	 * 
+	 * @return true if every query is served by an index
+	 */
+	public boolean verifyQueryPlans(){
+		
+		Date now = new Date();
+		List<String> failures = new ArrayList<>();
+		List<String> sampleMsisdns = Arrays.asList(SAMPLE_MSISDN, SAMPLE_MSISDN + "1");
+		
+		Document stateByMsisdn = new Document(SubscriberState.msisdn.name(), SAMPLE_MSISDN);
+		Document stateByMsisdns = new Document(SubscriberState.msisdn.name(), new Document("$in", sampleMsisdns));
+		Document historyByMsisdn = new Document(SubscriberHistory.msisdn.name(), SAMPLE_MSISDN);
+		Document recentHistoryByMsisdns = new Document(SubscriberHistory.msisdn.name(), new Document("$in", sampleMsisdns))
+				.append(SubscriberHistory.recharge_time.name(), new Document("$gte", now));
+		Document earliestSort = new Document(SubscriberHistory.recharge_time.name(), 1);
+		
+		checkPlan(failures, "getSubscriberStateByMsisdn", AppDocuments.subscriber_state, stateByMsisdn, null);
+		checkPlan(failures, "getSubscriberStateByMsisdns", AppDocuments.subscriber_state, stateByMsisdns, null);
+		checkPlan(failures, "getSubscriberHistoryByMsisdn", AppDocuments.subscriber_history, historyByMsisdn, null);
+		checkPlan(failures, "getRechargeSeriesByMsisdns", AppDocuments.subscriber_history, recentHistoryByMsisdns, null);
+		checkPlan(failures, "aggregateTopUpsByMsisdns", AppDocuments.subscriber_history, recentHistoryByMsisdns, null);
+		checkPlan(failures, "getHistorySummaryByMsisdns", AppDocuments.subscriber_history, 
+				new Document(SubscriberHistory.msisdn.name(), new Document("$in", sampleMsisdns)), null);
+		checkPlan(failures, "getEarliestSubscriberHistoryTimeByMsisdn", AppDocuments.subscriber_history, historyByMsisdn, earliestSort);
+		
+		try {
+			if (!hasIndex(mongoManager.getCollectionConnection(AppDocuments.subscriber_state.name()), 
+					new Document(SubscriberState.msisdn.name(), 1), true))
+				failures.add("unique subscriber_state.msisdn");
+		} catch (MongoException e) {
+			log.error("Unable to list indexes of " + AppDocuments.subscriber_state.name(), e);
+			failures.add("unique subscriber_state.msisdn");
+		}
+		
+		verified = failures.isEmpty();
+		
+		if (verified)
+			log.info("All RAS mongo queries are served by index scans");
+		else
+			log.fatal("RAS SWEEPS BLOCKED: collection scan detected for " + failures 
+					+ ". Create the missing indexes or wait for background index builds to finish.");
+		
+		return verified;
+	}
+	
+	public boolean isVerified() {
+		return verified;
+	}
+	
+	/**
+	 * Explain a find query and record it as failed if the winning plan scans the collection.
+	 * 
+	 * @param failures list of failed query names
+	 * @param query DocumentManager query name
+	 * @param collection target collection
+	 * @param filter query filter
+	 * @param sort query sort or null
+	 */
+	private void checkPlan(List<String> failures, 
+			String query, AppDocuments collection, Document filter, Document sort){
+		
+		Document find = new Document("find", collection.name()).append("filter", filter);
+		if (sort != null)
+			find.append("sort", sort);
+		
+		try {
+			Document explain = mongoManager.getDatabaseConnection()
+					.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+			
+			Object winningPlan = ((Document) explain.get("queryPlanner")).get("winningPlan");
+			if (containsStage(winningPlan, COLLSCAN))
+				failures.add(query);
+		} catch (MongoException e) {
+			log.error("Unable to explain query:" + query, e);
+			failures.add(query);
+		}
+	}
+	
+	/**
+	 * Walk an explain plan tree looking for a stage.
+	 * 
+	 * @param plan plan node
+	 * @param stage stage name
+	 * @return true if stage appears anywhere in plan
+	 */
+	private boolean containsStage(Object plan, String stage){
+		
+		if (plan instanceof Document){
+			Document node = (Document) plan;
+			if (stage.equals(node.get("stage")))
+				return true;
+			
+			for (Object child : node.values())
+				if (containsStage(child, stage))
+					return true;
+		}
+		
+		if (plan instanceof List){
+			for (Object child : (List<?>) plan)
+				if (containsStage(child, stage))
+					return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Check if collection has an index with exactly the given ascending key pattern.
+	 * 
+	 * @param mongoCollection {@link MongoCollection} record
+	 * @param keys expected key pattern
+	 * @param unique true if the index must also enforce uniqueness
+	 * @return true if index exists
+	 */
+	private boolean hasIndex(MongoCollection<Document> mongoCollection, 
+			Document keys, boolean unique){
+		
+		for (Document index : mongoCollection.listIndexes()) {
+			if (sameKeys((Document) index.get("key"), keys) 
+					&& (!unique || Boolean.TRUE.equals(index.get("unique"))))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Compare key patterns field by field, ignoring numeric type (shell-created indexes use doubles).
+	 * 
+	 * @param actual existing key pattern
+	 * @param expected expected key pattern
+	 * @return true if equal
+	 */
+	private boolean sameKeys(Document actual, Document expected){
+		
+		if (actual == null || actual.size() != expected.size())
+			return false;
+		
+		Iterator<Map.Entry<String, Object>> actualKeys = actual.entrySet().iterator();
+		for (Map.Entry<String, Object> expectedKey : expected.entrySet()) {
+			Map.Entry<String, Object> actualKey = actualKeys.next();
+			if (!actualKey.getKey().equals(expectedKey.getKey()) 
+					|| !(actualKey.getValue() instanceof Number)
+					|| ((Number) actualKey.getValue()).intValue() != ((Number) expectedKey.getValue()).intValue())
+				return false;
+		}
+		
+		return true;
+	}
+
+}
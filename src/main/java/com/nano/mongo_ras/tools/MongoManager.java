@@ -3,16 +3,26 @@ package com.nano.mongo_ras.tools;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.conversions.Bson;
+import org.jboss.logging.Logger;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoCollection;
@@ -20,18 +30,43 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.IndexModel;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.nano.mongo_ras.documents.RechargeSeriesCodecProvider;
+import com.nano.mongo_ras.metrics.CommandLatencyListener;
+import com.nano.mongo_ras.metrics.ConnectionPoolMonitor;
 
 @ApplicationScoped
 public class MongoManager {
 	
+	private Logger log = Logger.getLogger(getClass());
+	
 	private MongoClient mongoClient ;
 	
+	private volatile MongoDatabase appDatabase ;
+	
+	private final ConcurrentMap<String, MongoCollection<Document>> collections = new ConcurrentHashMap<>();
+	
+	private final AtomicLong adminCommandCount = new AtomicLong();
+	
+	private CommandLatencyListener commandListener ;
+	
+	private final ConnectionPoolMonitor poolMonitor = new ConnectionPoolMonitor();
+	
+	private ScheduledFuture<?> poolSampler ;
+	
 	@Inject
 	private PropertiesManager props ;
 	
+	@Inject
+	private ApplicationBean applicationBean ;
+	
+	@Resource
+	private ManagedScheduledExecutorService managedScheduledExecutorService;
+	
 	@PostConstruct
 	public void run() {
 		
+		commandListener = new CommandLatencyListener(props.getBool("mongodb.metrics.reply.bytes", false));
+		
 		MongoCredential mongoCredential = MongoCredential.createCredential(
 				props.getProperty("mongodb.username", "nano"), 
 				props.getProperty("mongodb.connection.db", "admin"), 
@@ -39,18 +74,99 @@ public class MongoManager {
 		
 		ServerAddress serverAddress = new ServerAddress(props.getProperty("mongodb.host.uri", "localhost"), props.getInt("mongodb.host.port", 28019));
 		
-		mongoClient = new MongoClient(serverAddress, Arrays.asList(mongoCredential));
+		mongoClient = new MongoClient(serverAddress, Arrays.asList(mongoCredential), buildClientOptions());
+		
+		refreshHandles();
+		
+		int sampleInterval = props.getInt("mongodb.pool.sample.interval.seconds", 5);
+		poolSampler = managedScheduledExecutorService.scheduleAtFixedRate(poolMonitor::sample, sampleInterval, sampleInterval, TimeUnit.SECONDS);
 	}
 	
 	@PreDestroy
 	public void stop() {
+		if (poolSampler != null)
+			poolSampler.cancel(false);
+		
+		log.info("Mongo metrics on shutdown:" + getMetricsSummary());
 		mongoClient.close();
 	}
 	
+	/**
+	 * Build client options from app.properties. Defaults mirror the driver defaults.
+	 * The wait queue size is converted to the driver's per-connection multiplier.
+	 * 
+	 * @return {@link MongoClientOptions}
+	 */
+	private MongoClientOptions buildClientOptions(){
+		
+		int poolSize = props.getInt("mongodb.pool.max.size", 100);
+		int waitQueueSize = props.getInt("mongodb.pool.wait.queue.size", 500);
+		
+		return MongoClientOptions.builder()
+				.connectionsPerHost(poolSize)
+				.minConnectionsPerHost(props.getInt("mongodb.pool.min.size", 0))
+				.threadsAllowedToBlockForConnectionMultiplier(Math.max(1, (waitQueueSize + poolSize - 1) / poolSize))
+				.maxWaitTime(props.getInt("mongodb.pool.max.wait.ms", 120000))
+				.maxConnectionIdleTime(props.getInt("mongodb.pool.max.idle.ms", 0))
+				.connectTimeout(props.getInt("mongodb.connect.timeout.ms", 10000))
+				.socketTimeout(props.getInt("mongodb.socket.timeout.ms", 0))
+				.heartbeatFrequency(props.getInt("mongodb.heartbeat.frequency.ms", 10000))
+				.minHeartbeatFrequency(props.getInt("mongodb.heartbeat.min.frequency.ms", 500))
+				.heartbeatConnectTimeout(props.getInt("mongodb.heartbeat.connect.timeout.ms", 20000))
+				.heartbeatSocketTimeout(props.getInt("mongodb.heartbeat.socket.timeout.ms", 20000))
+				.addCommandListener(commandListener)
+				.codecRegistry(CodecRegistries.fromRegistries(MongoClient.getDefaultCodecRegistry(), 
+						CodecRegistries.fromProviders(new RechargeSeriesCodecProvider(applicationBean.getZone()))))
+				.build();
+	}
+	
 	public MongoClient getMongoClient() {
 		return mongoClient;
 	}
 	
+	/**
+	 * Number of admin commands (role grants) sent since startup.
+	 * Should stay flat while sweeps are running.
+	 * 
+	 * @return admin command count
+	 */
+	public long getAdminCommandCount() {
+		return adminCommandCount.get();
+	}
+	
+	public CommandLatencyListener getCommandListener() {
+		return commandListener;
+	}
+	
+	public ConnectionPoolMonitor getPoolMonitor() {
+		return poolMonitor;
+	}
+	
+	/**
+	 * Summary of pool usage and per-collection command latency for sizing the pool.
+	 * 
+	 * @return printable metrics
+	 */
+	public String getMetricsSummary() {
+		return "\n pool: " + poolMonitor + "\n adminCommands: " + getAdminCommandCount() + "\n commands: " + commandListener;
+	}
+	
+	/**
+	 * Grant application DB role to the configured user and re-resolve cached database and collection handles.
+	 * Invoked once at startup; call again only if roles or the application DB changed.
+	 */
+	public synchronized void refreshHandles() {
+		
+		String user = props.getProperty("mongodb.username", "nano");
+		String role = props.getProperty("mongod.role.owner", "dbOwner");
+		String appdb = props.getProperty("monogo.app.db", "nano_db");
+		
+		granRoleToUser(user, role, appdb);
+		
+		collections.clear();
+		appDatabase = mongoClient.getDatabase(appdb);
+	}
+	
 	/**
 	 * Grants additional roles to a user.
 	 * 
@@ -64,22 +180,18 @@ public class MongoManager {
 		Bson command = new Document("grantRolesToUser", user)
 				.append("roles", Arrays.asList(new Document("role", role).append("db", db)));
 		
+		adminCommandCount.incrementAndGet();
 		mongoClient.getDatabase("admin").runCommand(command);
 	}
 	
 	/**
-	 * Get MongoDatabase connection for application database to use in querying collections.
+	 * Get cached MongoDatabase connection for application database to use in querying collections.
 	 * 
 	 * @return {@link MongoDatabase} object
 	 */
 	public MongoDatabase getDatabaseConnection(){
 		
-		String user = props.getProperty("mongodb.username", "nano");
-		String role = props.getProperty("mongod.role.owner", "dbOwner");
-		String appdb = props.getProperty("monogo.app.db", "nano_db");
-		
-		granRoleToUser(user, role, appdb);
-		return mongoClient.getDatabase(appdb);
+		return appDatabase;
 	}
 	
 	/**
@@ -107,14 +219,15 @@ public class MongoManager {
 	}
 	
 	/**
-	 * Get MongoCOllection connection for application DB to use in querying documents.
+	 * Get cached MongoCOllection connection for application DB to use in querying documents.
+	 * Handles are thread safe and resolved once per collection name.
 	 * 
 	 * @param collectionName name of applicationDB collection
 	 * @return {@link MongoCollection} record
 	 */
 	public MongoCollection<Document> getCollectionConnection(String collectionName){
 		
-		return getDatabaseConnection().getCollection(collectionName);
+		return collections.computeIfAbsent(collectionName, name -> getDatabaseConnection().getCollection(name));
 	}
 	
 	/**
@@ -163,7 +276,7 @@ public class MongoManager {
 		
 		for (String field : fields){
 			
-			IndexModel indexModel = new IndexModel(Indexes.ascending(field), new IndexOptions().unique(true).name(field.toUpperCase() + "_UNIQUE"));
+			IndexModel indexModel = new IndexModel(Indexes.ascending(field), new IndexOptions().unique(true).background(true).name(field.toUpperCase() + "_UNIQUE"));
 			indexes.add(indexModel);
 		}
 		
@@ -195,7 +308,8 @@ public class MongoManager {
 	 */
 	public void createCompoundIndex(MongoCollection<Document> mongoCollection, String...fields) {
 		
-		mongoCollection.createIndex(Indexes.compoundIndex(Indexes.ascending(fields)));
+		mongoCollection.createIndex(Indexes.compoundIndex(Indexes.ascending(fields)), 
+				new IndexOptions().background(true).name(String.join("_", fields).toUpperCase()));
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.nano.mongo_ras.tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Streaming source of the MSISDN sweep over a server-side cursor of the subscriber view.
+ * Pages are filled in the background into a bounded queue, the cursor is only read ahead 
+ * while the queue has room so no more than its capacity is held in memory.
+ * The stream stops and releases its cursor, transaction and thread once the sweep cancels its {@link Future} 
+ * or has not taken a page for ras.prefetch.abandon.minutes.
+ * 
+ */
+@Stateless
+public class MsisdnCursor {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	private static final String DUE_CURSOR = "SELECT e.msisdn, a.last_processed IS NULL " 
+			+ "OR a.last_processed < ? AS due FROM %s e " 
+			+ "LEFT JOIN subscriber s ON s.msisdn = " + QueryManager.formatMsisdnSql("e.msisdn") + " " 
+			+ "LEFT JOIN subscriber_assessment a ON a.subscriber = s.pk WHERE e.msisdn > ? ORDER BY e.msisdn";
+	
+	@Resource(lookup = "java:/jdbc/XADB")
+	private DataSource dataSource ;
+	
+	@Inject
+	private QueryManager queryManager ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Resource
+	private SessionContext sessionContext ;
+	
+	/**
+	 * Stream the subscriber view into pages, waiting while the queue is full.
+	 * An empty {@link MsisdnPage} is queued last when the view is exhausted, a failed one if the cursor fails, 
+	 * nothing once the sweep has gone.
+	 * 
+	 * @param pageSize number of view rows per page, also the cursor fetch size
+	 * @param lastMsisdn MSISDN the stream starts after, empty string for the whole view
+	 * @param pages bounded queue the sweep takes pages from
+	 * @return {@link Future} the sweep cancels when it stops taking pages
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Future<Void> stream(int pageSize, 
+			String lastMsisdn, BlockingQueue<MsisdnPage> pages){
+		
+		String sql = String.format(DUE_CURSOR, props.getProperty("ras.query.table.name", "subscriber_eval"));
+		long abandonNanos = TimeUnit.MINUTES.toNanos(props.getInt("ras.prefetch.abandon.minutes", 30));
+		
+		boolean exhausted = false;
+		boolean abandoned = false;
+		try (Connection connection = dataSource.getConnection()) {
+			// postgres only holds a cursor open inside a transaction, otherwise the whole result is read at once
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				statement.setFetchSize(pageSize);
+				statement.setTimestamp(1, queryManager.getDueBefore());
+				statement.setString(2, lastMsisdn);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					List<String> msisdns = new ArrayList<>();
+					int rows = 0;
+					while (!abandoned && resultSet.next()) {
+						lastMsisdn = resultSet.getString(1);
+						if (resultSet.getBoolean(2))
+							msisdns.add(lastMsisdn);
+						
+						if (++rows == pageSize){
+							abandoned = !offer(pages, new MsisdnPage(msisdns, rows, lastMsisdn), abandonNanos);
+							msisdns = new ArrayList<>();
+							rows = 0;
+						}
+					}
+					
+					if (!abandoned && rows > 0)
+						abandoned = !offer(pages, new MsisdnPage(msisdns, rows, lastMsisdn), abandonNanos);
+					exhausted = !abandoned;
+				}
+			} finally {
+				// ends the cursor transaction, the cursor itself is closed with the result set
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			log.error("MSISDN cursor failed, ending sweep", e);
+		} catch (InterruptedException e) {
+			log.error("MSISDN cursor interrupted, ending sweep", e);
+			Thread.currentThread().interrupt();
+		}
+		
+		if (abandoned)
+			log.warn("MSISDN cursor closed, sweep stopped taking pages after:" + lastMsisdn);
+		else
+			end(pages, exhausted, abandonNanos);
+		
+		return new AsyncResult<>(null);
+	}
+	
+	/**
+	 * Queue a page, waiting while the queue is full for as long as the sweep is still taking pages.
+	 * 
+	 * @param pages bounded queue the sweep takes pages from
+	 * @param page page to queue
+	 * @param abandonNanos time without room after which the sweep is taken to have gone
+	 * @return true if queued, false if the sweep cancelled the stream or has gone
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean offer(BlockingQueue<MsisdnPage> pages, 
+			MsisdnPage page, long abandonNanos) throws InterruptedException {
+		
+		long start = System.nanoTime();
+		while (!pages.offer(page, 1, TimeUnit.SECONDS)) {
+			if (sessionContext.wasCancelCalled() || System.nanoTime() - start > abandonNanos)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	private void end(BlockingQueue<MsisdnPage> pages, 
+			boolean exhausted, long abandonNanos){
+		
+		MsisdnPage page = exhausted ? MsisdnPage.empty() : MsisdnPage.failed();
+		try {
+			offer(pages, page, abandonNanos);
+		} catch (InterruptedException e) {
+			pages.offer(page);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.nano.mongo_ras.tools;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Page of the subscriber view, holding only the MSISDNs due for assessment 
+ * along with the number of view rows the page covered and the key the next page starts after.
+ * 
+ */
+public class MsisdnPage {
+	
+	private final List<String> msisdns ;
+	
+	private final int rows ;
+	
+	private final String lastMsisdn ;
+	
+	private final boolean failed ;
+
+	/**
+	 * @param msisdns MSISDNs of the page due for assessment
+	 * @param rows number of view rows the page covered, 0 past the end of the view
+	 * @param lastMsisdn last MSISDN of the view rows covered, due or not
+	 */
+	public MsisdnPage(List<String> msisdns, 
+			int rows, String lastMsisdn) {
+		
+		this(msisdns, rows, lastMsisdn, false);
+	}
+	
+	private MsisdnPage(List<String> msisdns, 
+			int rows, String lastMsisdn, boolean failed) {
+		
+		this.msisdns = msisdns;
+		this.rows = rows;
+		this.lastMsisdn = lastMsisdn;
+		this.failed = failed;
+	}
+	
+	/**
+	 * @return page past the end of the view
+	 */
+	public static MsisdnPage empty() {
+		return new MsisdnPage(Collections.emptyList(), 0, null);
+	}
+	
+	/**
+	 * @return empty page ending a sweep whose source failed before the end of the view
+	 */
+	public static MsisdnPage failed() {
+		return new MsisdnPage(Collections.emptyList(), 0, null, true);
+	}
+	
+	public List<String> getMsisdns() {
+		return msisdns;
+	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	public String getLastMsisdn() {
+		return lastMsisdn;
+	}
+	
+	public boolean isFailed() {
+		return failed;
+	}
+	
+	/**
+	 * @return true if page covered no view rows
+	 */
+	public boolean isEmpty() {
+		return rows == 0;
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.nano.mongo_ras.tools;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Benchmark of MSISDN page latency against depth into the subscriber view, run on startup when ras.benchmark.pagination is true.
+ * At ras.benchmark.depths evenly spaced depths the keyset page the sweep reads (msisdn > last ORDER BY msisdn LIMIT n)
+ * is timed against the OFFSET page it replaced, each ras.benchmark.repeats times, and the median of each is logged as a table.
+ * Keyset latency should stay flat from the first to the last row of the view while OFFSET grows with depth.
+ *
+ */
+@Startup
+@Singleton
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class PaginationBenchmark {
+
+	private Logger log = Logger.getLogger(getClass());
+
+	private static final String KEYSET_PAGE = "SELECT msisdn FROM %s WHERE msisdn > ? ORDER BY msisdn LIMIT ?";
+	private static final String OFFSET_PAGE = "SELECT msisdn FROM %s ORDER BY msisdn OFFSET ? LIMIT ?";
+	private static final String ROW_COUNT = "SELECT count(*) FROM %s";
+
+	@Resource(lookup = "java:/jdbc/XADB")
+	private DataSource dataSource ;
+
+	@Resource
+	private ManagedExecutorService managedExecutorService ;
+
+	@Inject
+	private PropertiesManager props ;
+
+	@Inject
+	private ApplicationBean applicationBean ;
+
+	@PostConstruct
+	public void init(){
+
+		if (props.getBool("ras.benchmark.pagination", false))
+			managedExecutorService.submit(() -> run(applicationBean.getFetchSize(),
+					props.getInt("ras.benchmark.depths", 10), props.getInt("ras.benchmark.repeats", 3)));
+	}
+
+	/**
+	 * Time keyset and OFFSET pages at increasing depth into the subscriber view.
+	 *
+	 * @param pageSize rows per page
+	 * @param depths number of depths sampled after the first page
+	 * @param repeats timed runs per depth and page source
+	 * @return report table, also logged
+	 */
+	public String run(int pageSize,
+			int depths, int repeats){
+
+		String view = props.getProperty("ras.query.table.name", "subscriber_eval");
+		StringBuilder report = new StringBuilder("pagination benchmark of ").append(view)
+				.append(", page size ").append(pageSize).append("\ndepth%\toffset\tkeyset ms\toffset ms");
+
+		try (Connection connection = dataSource.getConnection()) {
+			long rows = count(connection, view);
+			long lastPage = Math.max(0, rows - pageSize);
+
+			for (int depth = 0; depth <= depths; depth++) {
+				long offset = depths == 0 ? 0 : lastPage * depth / depths;
+				String lastMsisdn = keyBefore(connection, view, offset);
+
+				long[] keyset = new long[repeats];
+				long[] offsets = new long[repeats];
+				for (int i = 0; i < repeats; i++) {
+					keyset[i] = time(connection, String.format(KEYSET_PAGE, view), lastMsisdn, pageSize);
+					offsets[i] = time(connection, String.format(OFFSET_PAGE, view), offset, pageSize);
+				}
+
+				report.append('\n').append(rows == 0 ? 0 : offset * 100 / rows).append('\t').append(offset)
+					.append('\t').append(median(keyset)).append('\t').append(median(offsets));
+			}
+		} catch (SQLException e) {
+			log.error("Pagination benchmark failed", e);
+			report.append("\nfailed: ").append(e.getMessage());
+		}
+
+		log.info(report);
+
+		return report.toString();
+	}
+
+	private long count(Connection connection,
+			String view) throws SQLException {
+
+		try (PreparedStatement statement = connection.prepareStatement(String.format(ROW_COUNT, view));
+				ResultSet resultSet = statement.executeQuery()) {
+			return resultSet.next() ? resultSet.getLong(1) : 0L;
+		}
+	}
+
+	/**
+	 * Key the sweep would resume after to read the page starting at offset, read untimed.
+	 *
+	 * @param connection open connection
+	 * @param view subscriber view
+	 * @param offset rows before the page
+	 * @return last MSISDN before the page, empty string for the first page
+	 */
+	private String keyBefore(Connection connection,
+			String view, long offset) throws SQLException {
+
+		if (offset == 0)
+			return "";
+
+		try (PreparedStatement statement = connection.prepareStatement(String.format(OFFSET_PAGE, view))) {
+			statement.setLong(1, offset - 1);
+			statement.setInt(2, 1);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? resultSet.getString(1) : "";
+			}
+		}
+	}
+
+	/**
+	 * Run a page query and read every row.
+	 *
+	 * @return elapsed milliseconds
+	 */
+	private long time(Connection connection,
+			String sql, Object position, int pageSize) throws SQLException {
+
+		long start = System.nanoTime();
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setObject(1, position);
+			statement.setInt(2, pageSize);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next())
+					resultSet.getString(1);
+			}
+		}
+
+		return (System.nanoTime() - start) / 1000000L;
+	}
+
+	private long median(long[] samples){
+
+		long[] sorted = Arrays.copyOf(samples, samples.length);
+		Arrays.sort(sorted);
+
+		return sorted.length == 0 ? 0 : sorted[sorted.length / 2];
+	}
+
+}
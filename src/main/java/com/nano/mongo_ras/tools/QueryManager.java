@@ -1,6 +1,10 @@
 package com.nano.mongo_ras.tools;
 
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +51,16 @@ import com.nano.jpa.enums.SettingType;
 public class QueryManager {
 	
 	private Logger log = Logger.getLogger(getClass());
+	
+	// page is cut from the view by key before filtering so a page with nothing due still advances the sweep
+	private static final String DUE_PAGE = "SELECT e.msisdn, a.last_processed IS NULL " 
+			+ "OR a.last_processed < ? AS due " 
+			+ "FROM (SELECT msisdn FROM %s WHERE msisdn > ?%s ORDER BY msisdn LIMIT ?) e " 
+			+ "LEFT JOIN subscriber s ON s.msisdn = " + formatMsisdnSql("e.msisdn") + " " 
+			+ "LEFT JOIN subscriber_assessment a ON a.subscriber = s.pk ORDER BY e.msisdn";
+	
+	private static final String PARTITION_BOUNDS = "SELECT max(msisdn) FROM (SELECT msisdn, ntile(?) OVER (ORDER BY msisdn) AS part " 
+			+ "FROM %s) t GROUP BY part ORDER BY part";
 
 	private CriteriaBuilder criteriaBuilder ;
 
@@ -150,21 +164,21 @@ public class QueryManager {
 	/**
 	 * Fetch UN-ASSESSED {@link Subscriber} with {@link NamedQuery}.
 	 * 
-	 * @param startPosition query index position
+	 * @param lastMsisdn last MSISDN of the previous page, empty string for the first page
 	 * @param maxResult fetch limit
 	 * @return list of subscriber matriculation numbers
 	 */
 	@SuppressWarnings("unchecked")
-	public List<String> getMsisdnFromView(int startPosition, 
+	public List<String> getMsisdnFromView(String lastMsisdn, 
 			int maxResult){
 		
 		StopWatch stopWatch = new StopWatch();
 		stopWatch.start();
 		
-		String sql = new StringBuffer("select msisdn from ").append(props.getProperty("ras.query.table.name", "subscriber_eval")).append(" order by msisdn").toString() ;
+		String sql = new StringBuffer("select msisdn from ").append(props.getProperty("ras.query.table.name", "subscriber_eval")).append(" where msisdn > ? order by msisdn").toString() ;
 		
 		Query query = entityManager.createNativeQuery(sql);
-		query.setFirstResult(startPosition);
+		query.setParameter(1, lastMsisdn);
 		query.setMaxResults(maxResult);
 		
 		try {
@@ -180,6 +194,125 @@ public class QueryManager {
 		return Collections.emptyList();
 	}
 	
+	/**
+	 * Fetch a page of the subscriber view keeping only MSISDNs due for assessment, 
+	 * those without an assessment or last processed over ras.freshness.minutes ago.
+	 * Fresh subscribers are filtered by the query so they never cost a {@link Subscriber} lookup.
+	 * Pages are read by key so every page costs the same index range scan however deep into the view it is.
+	 * 
+	 * @param lastMsisdn last MSISDN of the previous page, empty string for the first page
+	 * @param maxResult number of view rows to cover
+	 * @return {@link MsisdnPage} of due MSISDNs, empty past the end of the view, failed if query fails
+	 */
+	public MsisdnPage getDueMsisdnFromView(String lastMsisdn, 
+			int maxResult){
+		
+		return getDueMsisdnFromView(lastMsisdn, null, maxResult);
+	}
+	
+	/**
+	 * Fetch a page of a range of the subscriber view keeping only MSISDNs due for assessment.
+	 * 
+	 * @param lastMsisdn last MSISDN of the previous page, empty string for the first page
+	 * @param upperMsisdn last MSISDN of the range inclusive, null for the end of the view
+	 * @param maxResult number of view rows to cover
+	 * @return {@link MsisdnPage} of due MSISDNs, empty past the end of the range, failed if query fails
+	 */
+	@SuppressWarnings("unchecked")
+	public MsisdnPage getDueMsisdnFromView(String lastMsisdn, 
+			String upperMsisdn, int maxResult){
+		
+		StopWatch stopWatch = new StopWatch();
+		stopWatch.start();
+		
+		String sql = String.format(DUE_PAGE, props.getProperty("ras.query.table.name", "subscriber_eval"), 
+				upperMsisdn == null ? "" : " AND msisdn <= ?");
+		
+		int index = 1;
+		Query query = entityManager.createNativeQuery(sql);
+		query.setParameter(index++, getDueBefore());
+		query.setParameter(index++, lastMsisdn);
+		if (upperMsisdn != null)
+			query.setParameter(index++, upperMsisdn);
+		query.setParameter(index, maxResult);
+		
+		try {
+			List<Object[]> rows = query.getResultList();
+			List<String> msisdns = new ArrayList<>(rows.size());
+			for (Object[] row : rows) {
+				if (Boolean.TRUE.equals(row[1]))
+					msisdns.add((String) row[0]);
+			}
+			log.info("due subscribers:" + msisdns.size() + "/" + rows.size());
+			
+			return new MsisdnPage(msisdns, rows.size(), rows.isEmpty() ? lastMsisdn : (String) rows.get(rows.size() - 1)[0]);
+		} catch (Exception e) {
+			log.error("", e);
+		} finally {
+			stopWatch.stop();
+			log.info("Time taken to fetch list:" + stopWatch.getTime() + "ms");
+		}
+		
+		return MsisdnPage.failed();
+	}
+	
+	/**
+	 * Split the subscriber view into ranges of about equal size.
+	 * 
+	 * @param partitions number of ranges
+	 * @return last MSISDN of each range in ascending order, fewer than requested if the view is small
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionTimeout(unit = TimeUnit.MINUTES, value = 20)
+	public List<String> getMsisdnPartitionBounds(int partitions){
+		
+		Query query = entityManager.createNativeQuery(String.format(PARTITION_BOUNDS, props.getProperty("ras.query.table.name", "subscriber_eval")));
+		query.setParameter(1, partitions);
+		
+		try {
+			return query.getResultList();
+		} catch (Exception e) {
+			log.error("", e);
+		}
+		
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * Minutes after which an assessment is due again.
+	 * 
+	 * @return ras.freshness.minutes, defaults to 60
+	 */
+	public int getFreshnessMinutes(){
+		
+		return props.getInt("ras.freshness.minutes", 60);
+	}
+	
+	/**
+	 * Last processed time before which an assessment is due again. 
+	 * Taken from the JVM clock last_processed is written with, not the database clock.
+	 * 
+	 * @return now less ras.freshness.minutes
+	 */
+	public Timestamp getDueBefore(){
+		
+		return Timestamp.valueOf(LocalDateTime.now().minusMinutes(getFreshnessMinutes()));
+	}
+	
+	/**
+	 * SQL expression normalising an MSISDN column like {@link #formatMisisdn(String)}, 
+	 * so raw view MSISDNs can be joined to the formatted MSISDNs subscribers are stored with.
+	 * 
+	 * @param column MSISDN column
+	 * @return SQL expression
+	 */
+	public static String formatMsisdnSql(String column){
+		
+		return "CASE WHEN left(" + column + ", 3) = '234' THEN '0' || substr(" + column + ", 4) " 
+				+ "WHEN left(" + column + ", 4) = '+234' THEN '0' || substr(" + column + ", 5) " 
+				+ "WHEN left(" + column + ", 1) = '0' THEN " + column + " ELSE '0' || " + column + " END";
+	}
+	
 	/**
 	 * Refresh materialized view.
 	 * 
@@ -286,6 +419,26 @@ public class QueryManager {
 		return Collections.emptyList();
 	}
 	
+	/**
+	 * Fetch {@link Subscriber} records of MSISDNs with a single IN query.
+	 * 
+	 * @param msisdns formatted subscriber MSISDNs
+	 * @return subscribers found, in no particular order
+	 */
+	public List<Subscriber> getSubscribersByMsisdns(Collection<String> msisdns){
+		
+		if (msisdns.isEmpty())
+			return Collections.emptyList();
+
+		CriteriaQuery<Subscriber> criteriaQuery = criteriaBuilder.createQuery(Subscriber.class);
+		Root<Subscriber> root = criteriaQuery.from(Subscriber.class);
+
+		criteriaQuery.select(root);
+		criteriaQuery.where(root.get(Subscriber_.msisdn).in(msisdns));
+
+		return entityManager.createQuery(criteriaQuery).getResultList();
+	}
+	
 	/**
 	 * Fetch {@link Subscriber} by MSISDN property.
 	 * 
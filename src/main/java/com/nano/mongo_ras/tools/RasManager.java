@@ -4,11 +4,15 @@
  */
 package com.nano.mongo_ras.tools;
 
-import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import javax.batch.runtime.BatchStatus;
+import javax.ejb.DependsOn;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.enterprise.concurrent.ManagedScheduledExecutorService;
@@ -16,7 +20,12 @@ import javax.inject.Inject;
 
 import org.jboss.logging.Logger;
 
-import com.nano.mongo_ras.assess.RasProcessor;
+import com.nano.mongo_ras.assess.AssessmentPipeline;
+import com.nano.mongo_ras.assess.InFlight;
+import com.nano.mongo_ras.assess.RuleEngine;
+import com.nano.mongo_ras.batch.SweepJob;
+import com.nano.mongo_ras.metrics.PageLatencyStats;
+import com.nano.mongo_ras.metrics.SweepStatistics;
 
 /**
  * 
@@ -26,13 +35,24 @@ import com.nano.mongo_ras.assess.RasProcessor;
 
 @Startup
 @Singleton
+@DependsOn("IndexManager")
 public class RasManager {
 	
 	private Logger log = Logger.getLogger(getClass());
 
 	private QueryManager queryManager ;
-	private RasProcessor processor ;
+	private AssessmentPipeline pipeline ;
 	private ApplicationBean applicationBean ;
+	private MongoManager mongoManager ;
+	private IndexManager indexManager ;
+	private RuleEngine ruleEngine ;
+	private SweepStatistics sweepStatistics ;
+	private PageLatencyStats pageLatencyStats ;
+	private MsisdnCursor msisdnCursor ;
+	private PropertiesManager props ;
+	private SweepJob sweepJob ;
+	private SweepProgress sweepProgress ;
+	private SweepLeases sweepLeases ;
 	
 	private int pause = 5;
 
@@ -42,12 +62,27 @@ public class RasManager {
 
 	@Inject
 	public RasManager(QueryManager queryManager, 
-			RasProcessor rasProcessor, ApplicationBean applicationBean) {
+			AssessmentPipeline pipeline, ApplicationBean applicationBean, 
+			MongoManager mongoManager, IndexManager indexManager, 
+			RuleEngine ruleEngine, SweepStatistics sweepStatistics, 
+			PageLatencyStats pageLatencyStats, MsisdnCursor msisdnCursor, 
+			PropertiesManager props, SweepJob sweepJob, 
+			SweepProgress sweepProgress, SweepLeases sweepLeases) {
 		// TODO Auto-generated constructor stub
 
 		this.queryManager = queryManager;
-		this.processor = rasProcessor;
+		this.pipeline = pipeline;
 		this.applicationBean = applicationBean;
+		this.mongoManager = mongoManager;
+		this.indexManager = indexManager;
+		this.ruleEngine = ruleEngine;
+		this.sweepStatistics = sweepStatistics;
+		this.pageLatencyStats = pageLatencyStats;
+		this.msisdnCursor = msisdnCursor;
+		this.props = props;
+		this.sweepJob = sweepJob;
+		this.sweepProgress = sweepProgress;
+		this.sweepLeases = sweepLeases;
 	}
 
 	@Resource
@@ -57,15 +92,24 @@ public class RasManager {
 	public void init(){
 
 		log.info("Commencing managed scheduled task");
+		if (sweepProgress.load())
+			log.info("Resuming unfinished sweep:" + sweepProgress.getSweepId());
 		runAssessment();
 	}
 
 	/**
-	 * Fetch {@link Subscriber} MSISDN in batch of 25K.
-	 * Iterate list asynchronously and forward to JMS destination (also asynchronously)
-	 * Break for x hours for every 250k records fetched to allow time for asynchronous
-	 * threads to complete processing and refreshing of database view.
-	 * At this rate, application should achieve roughly Y million assessments daily.
+	 * Schedule the sweep, run every {@link #pause} minutes after the previous one ended.
+	 * A sweep reads the MSISDNs due for assessment from the subscriber view in pages of the {@link ApplicationBean} fetch size, in MSISDN order.
+	 * With ras.sweep.source cursor (default) pages are streamed from a server-side cursor and 
+	 * up to ras.prefetch.pages are filled in the background while the current page is processed, 
+	 * keyset reads each page by key only once the previous one was handed out.
+	 * Pages are fed to the {@link AssessmentPipeline}, which blocks the source while its stages are full, 
+	 * and the sweep ends once every subscriber is assessed and written.
+	 * With ras.sweep.engine batch the sweep runs as the checkpointed {@link SweepJob} instead.
+	 * Progress is kept by {@link SweepProgress}, every ras.sweep.checkpoint.pages pages the pipeline is drained 
+	 * and the last MSISDN committed, so an unfinished sweep resumes after it on the next run or deployment.
+	 * With ras.sweep.engine lease nodes share the sweep through {@link SweepLeases}, each assessing 
+	 * the MSISDN ranges it claims and committing progress on the lease instead.
 	 * 
 	 */
 	private void runAssessment() {
@@ -75,27 +119,221 @@ public class RasManager {
 
 			private Logger log = Logger.getLogger(getClass());
 			
-			private int startPosition = 0;
 			private int fetchSize = applicationBean.getFetchSize();
 
 			@Override
 			public void run() {
 				// TODO Auto-generated method stub
 
+				if (!indexManager.isVerified() && !indexManager.verifyQueryPlans()){
+					log.fatal("Skipping ras job mass task execution until required mongo indexes are in place");
+					return;
+				}
+				
 				log.info("Starting ras job mass task execution");
+				applicationBean.startSweepDay();
+				ruleEngine.compile();
+				sweepStatistics.start();
+				pageLatencyStats.start();
+				pipeline.start();
+				
+				String engine = props.getProperty("ras.sweep.engine", "pipeline");
+				if (engine.equalsIgnoreCase("lease")){
+					runLeases();
+				}
+				else{
+					String lastMsisdn = sweepProgress.begin();
+					boolean complete = engine.equalsIgnoreCase("batch") ? runJob() : runPipeline(lastMsisdn);
+					if (complete)
+						sweepProgress.complete();
+				}
+				
+				pipeline.logStatistics();
+				log.info("mongo metrics - " + mongoManager.getMetricsSummary());
+				log.info("sweep statistics - " + sweepStatistics);
+				log.info("source page latency - " + pageLatencyStats);
+			}
+			
+			private boolean runJob(){
+				
+				try {
+					return sweepJob.run() == BatchStatus.COMPLETED;
+				} catch (InterruptedException e) {
+					log.error("Interrupted waiting for " + SweepJob.JOB_NAME + " to complete", e);
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					log.error("", e);
+				}
 				
-				List<String> subscribers = queryManager.getMsisdnFromView(startPosition, fetchSize);
+				return false;
+			}
+			
+			/**
+			 * Assess ranges of the current sweep claimed by this node until none is left.
+			 */
+			private void runLeases(){
 				
-				while (!subscribers.isEmpty()) {
+				long sweepId = sweepLeases.currentSweep();
+				if (sweepId == 0)
+					return;
+				
+				SweepLeases.Lease lease;
+				while ((lease = sweepLeases.claim(sweepId)) != null) {
 					try {
-						processor.start(subscribers);
-						startPosition += fetchSize;
-						subscribers = queryManager.getMsisdnFromView(startPosition, fetchSize);
-						log.info("startPosition:" + startPosition);
+						runLease(lease);
+					} catch (InterruptedException e) {
+						log.error("Interrupted assessing " + lease, e);
+						sweepLeases.release(lease);
+						Thread.currentThread().interrupt();
+						return;
 					} catch (Exception e) {
+						log.error("Unable to assess " + lease, e);
+						sweepLeases.fail(lease);
+					}
+				}
+			}
+			
+			/**
+			 * Feed a leased range through the pipeline from its checkpoint, committing on the lease 
+			 * once the pipeline is drained every ras.sweep.checkpoint.pages pages.
+			 */
+			private void runLease(SweepLeases.Lease lease) throws InterruptedException {
+				
+				int checkpointPages = Math.max(1, props.getInt("ras.sweep.checkpoint.pages", 4));
+				int uncommittedPages = 0;
+				InFlight inFlight = new InFlight();
+				String lastMsisdn = lease.getCheckpoint();
+				MsisdnPage page = nextPage(lease, lastMsisdn);
+				
+				while (!page.isEmpty()) {
+					if (!page.getMsisdns().isEmpty())
+						pipeline.submit(page.getMsisdns(), inFlight);
+					lastMsisdn = page.getLastMsisdn();
+					if (++uncommittedPages >= checkpointPages){
+						pipeline.awaitIdle(inFlight);
+						if (!sweepLeases.commit(lease, lastMsisdn))
+							return;
+						uncommittedPages = 0;
+					}
+					page = nextPage(lease, lastMsisdn);
+				}
+				pipeline.awaitIdle(inFlight);
+				
+				if (page.isFailed())
+					sweepLeases.fail(lease);
+				else
+					sweepLeases.complete(lease, lastMsisdn);
+			}
+			
+			private MsisdnPage nextPage(SweepLeases.Lease lease, 
+					String lastMsisdn){
+				
+				long start = System.nanoTime();
+				try {
+					return queryManager.getDueMsisdnFromView(lastMsisdn, lease.getLastMsisdn(), fetchSize);
+				} finally {
+					pageLatencyStats.record(System.nanoTime() - start);
+				}
+			}
+			
+			/**
+			 * Feed the view after lastMsisdn through the pipeline.
+			 * 
+			 * @return true if the end of the view was reached and every subscriber assessed
+			 */
+			private boolean runPipeline(String lastMsisdn){
+				
+				BlockingQueue<MsisdnPage> pages = null;
+				Future<Void> producer = null;
+				if (props.getProperty("ras.sweep.source", "cursor").equalsIgnoreCase("cursor")){
+					pages = new ArrayBlockingQueue<>(Math.max(1, props.getInt("ras.prefetch.pages", 2)));
+					producer = msisdnCursor.stream(fetchSize, lastMsisdn, pages);
+				}
+				
+				try {
+					return feedPipeline(pages, producer, lastMsisdn);
+				} finally {
+					// releases the cursor if the sweep ends before the view does
+					if (producer != null)
+						producer.cancel(true);
+				}
+			}
+			
+			/**
+			 * Feed pages through the pipeline until the view ends, committing progress every ras.sweep.checkpoint.pages pages.
+			 * An unexpected failure ends the sweep, it resumes after the last committed MSISDN on the next run.
+			 */
+			private boolean feedPipeline(BlockingQueue<MsisdnPage> pages, 
+					Future<Void> producer, String lastMsisdn){
+				
+				int checkpointPages = Math.max(1, props.getInt("ras.sweep.checkpoint.pages", 4));
+				int uncommittedPages = 0;
+				InFlight inFlight = new InFlight();
+				MsisdnPage page = nextPage(pages, producer, lastMsisdn);
+				
+				while (!page.isEmpty()) {
+					try {
+						sweepProgress.count(page);
+						if (!page.getMsisdns().isEmpty())
+							pipeline.submit(page.getMsisdns(), inFlight);
+						if (++uncommittedPages >= checkpointPages){
+							pipeline.awaitIdle(inFlight);
+							sweepProgress.commit(page.getLastMsisdn());
+							uncommittedPages = 0;
+						}
+						page = nextPage(pages, producer, page.getLastMsisdn());
+						log.info("lastMsisdn:" + page.getLastMsisdn());
+						if (log.isDebugEnabled()){
+							log.debug("mongo metrics:" + mongoManager.getMetricsSummary());
+							log.debug("pipeline:" + pipeline);
+						}
+					} catch (InterruptedException e) {
 						// TODO Auto-generated catch block
-						log.error("", e);
+						log.error("Interrupted waiting for assessments to complete", e);
+						Thread.currentThread().interrupt();
+						return false;
+					} catch (Exception e) {
+						log.error("Ending sweep after page ending " + page.getLastMsisdn() + ", resuming from last checkpoint on next run", e);
+						return false;
+					}
+				}
+				try {
+					pipeline.awaitIdle(inFlight);
+				} catch (InterruptedException e) {
+					log.error("Interrupted waiting for assessments to complete", e);
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				
+				return !page.isFailed();
+			}
+			
+			/**
+			 * Take the next page from the cursor queue, or read it by key when not streaming.
+			 * A stream that ended without queueing its last page is read as failed.
+			 * Time spent waiting is recorded as page latency.
+			 */
+			private MsisdnPage nextPage(BlockingQueue<MsisdnPage> pages, 
+					Future<Void> producer, String lastMsisdn){
+				
+				long start = System.nanoTime();
+				try {
+					if (pages == null)
+						return queryManager.getDueMsisdnFromView(lastMsisdn, fetchSize);
+					
+					MsisdnPage page;
+					while ((page = pages.poll(1, TimeUnit.SECONDS)) == null) {
+						if (producer.isDone() && pages.isEmpty())
+							return MsisdnPage.failed();
 					}
+					
+					return page;
+				} catch (InterruptedException e) {
+					log.error("Interrupted waiting for MSISDN page, ending sweep", e);
+					Thread.currentThread().interrupt();
+					return MsisdnPage.empty();
+				} finally {
+					pageLatencyStats.record(System.nanoTime() - start);
 				}
 			}
 		}, 1, pause, TimeUnit.MINUTES);
@@ -2,14 +2,28 @@ package com.nano.mongo_ras.tools;
 
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.ejb.AccessTimeout;
+import javax.ejb.EJBException;
 import javax.ejb.Lock;
 import javax.ejb.LockType;
+import javax.ejb.SessionContext;
 import javax.ejb.Singleton;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -32,6 +46,23 @@ public class SingletonQueries {
 	@Inject
 	private QueryManager qm ;
 	
+	@Inject
+	private PropertiesManager props ;
+	
+	@Resource
+	private SessionContext sessionContext ;
+	
+	// per MSISDN coordination of subscriber creation, in place of a lock on the whole bean
+	private ReentrantLock[] subscriberLocks ;
+	
+	@PostConstruct
+	public void init(){
+		
+		subscriberLocks = new ReentrantLock[Math.max(1, props.getInt("ras.subscriber.lock.stripes", 64))];
+		for (int i = 0; i < subscriberLocks.length; i++)
+			subscriberLocks[i] = new ReentrantLock();
+	}
+	
 	/**
 	 * Merge the state of the given entity into the current {@link PersistenceContext}.
 	 * 
@@ -71,6 +102,22 @@ public class SingletonQueries {
 		return null;
 	}
 	
+	/**
+	 * Merge the state of the given entities into a single new transaction.
+	 * 
+	 * @param entities entity instances
+	 * @return number of entities merged
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public <T> int updateAll(Collection<T> entities){
+
+		for (T entity : entities)
+			entityManager.merge(entity);
+		entityManager.flush();
+
+		return entities.size();
+	}
+	
 	/**
 	 * Persist entity and add entity instance to {@link EntityManager}.
 	 * 
@@ -92,25 +139,139 @@ public class SingletonQueries {
 	
 	/**
 	 * Creates or fetches a unique {@link Subscriber} record.
+	 * Creation of the same MSISDN is serialized by a lock stripe held until the creating transaction committed, 
+	 * other MSISDNs proceed concurrently. A subscriber created by another node meanwhile is fetched instead.
 	 *
 	 * @param msisdn subscriber unique MSISDN
 	 * @return {@link Subscriber}
 	 */
-	@Lock(LockType.WRITE)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Subscriber createSubscriber(String msisdn){
+
+		String formattedMsisdn = qm.formatMisisdn(msisdn);
+		ReentrantLock lock = subscriberLocks[stripe(formattedMsisdn)];
+		lock.lock();
+		try {
+			return sessionContext.getBusinessObject(SingletonQueries.class).persistSubscriber(formattedMsisdn);
+		} catch (EJBException e) {
+			Subscriber subscriber = qm.getSubscriberByMsisdn(formattedMsisdn);
+			if (subscriber == null)
+				throw e;
+			
+			return subscriber;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Creates or fetches {@link Subscriber} records of a page of MSISDNs.
+	 * Existing subscribers are loaded with one IN query and missing ones grouped by lock stripe, 
+	 * each group persisted in its own new transaction holding only that stripe's lock until it committed, 
+	 * so other MSISDNs are never held up behind a whole page.
+	 * If a group's transaction fails, for instance on a subscriber created by another node meanwhile, 
+	 * its subscribers are created one at a time with {@link #createSubscriber(String)}.
+	 *
+	 * @param msisdns subscriber MSISDNs
+	 * @return {@link Subscriber} keyed by the given MSISDN, in the given order
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Map<String, Subscriber> createSubscribers(Collection<String> msisdns){
+		
+		Map<String, String> formattedMsisdns = new LinkedHashMap<>();
+		msisdns.forEach(msisdn -> formattedMsisdns.put(msisdn, qm.formatMisisdn(msisdn)));
+		
+		Map<String, Subscriber> found = new HashMap<>();
+		qm.getSubscribersByMsisdns(new HashSet<>(formattedMsisdns.values()))
+			.forEach(subscriber -> found.put(subscriber.getMsisdn(), subscriber));
+		
+		Set<String> missing = new LinkedHashSet<>(formattedMsisdns.values());
+		missing.removeAll(found.keySet());
+		
+		Map<Integer, List<String>> stripes = new HashMap<>();
+		missing.forEach(msisdn -> stripes.computeIfAbsent(stripe(msisdn), stripe -> new ArrayList<>()).add(msisdn));
+		
+		// one stripe is held at a time, so concurrent pages cannot deadlock
+		SingletonQueries singletonQueries = stripes.isEmpty() ? null : sessionContext.getBusinessObject(SingletonQueries.class);
+		for (Map.Entry<Integer, List<String>> stripe : stripes.entrySet()) {
+			ReentrantLock lock = subscriberLocks[stripe.getKey()];
+			lock.lock();
+			try {
+				singletonQueries.persistSubscribers(stripe.getValue())
+					.forEach(subscriber -> found.put(subscriber.getMsisdn(), subscriber));
+			} catch (EJBException e) {
+				log.error("Create of " + stripe.getValue().size() + " subscribers failed, creating individually", e);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		Map<String, Subscriber> subscribers = new LinkedHashMap<>();
+		formattedMsisdns.forEach((msisdn, formattedMsisdn) -> 
+			subscribers.put(msisdn, found.computeIfAbsent(formattedMsisdn, this::createSubscriber)));
+		
+		return subscribers;
+	}
+	
+	/**
+	 * Fetch or persist a {@link Subscriber} in a new transaction, 
+	 * called through the business object by {@link #createSubscriber(String)} holding the MSISDN lock stripe.
+	 *
+	 * @param formattedMsisdn formatted subscriber MSISDN
+	 * @return {@link Subscriber}
+	 */
 	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-	public synchronized Subscriber createSubscriber(String msisdn){
+	public Subscriber persistSubscriber(String formattedMsisdn){
 
-		Subscriber subscriber = qm.getSubscriberByMsisdn(qm.formatMisisdn(msisdn));
+		Subscriber subscriber = qm.getSubscriberByMsisdn(formattedMsisdn);
 
 		if (subscriber != null)
 			return subscriber;
 
-		subscriber = new Subscriber();
+		subscriber = newSubscriber(formattedMsisdn);
+		create(subscriber);
+		entityManager.flush();
+		
+		return subscriber;
+	}
+	
+	/**
+	 * Fetch or persist {@link Subscriber} records in one new transaction, keys come from the entity generator.
+	 * Called through the business object by {@link #createSubscribers(Collection)} holding the lock stripe of the MSISDNs.
+	 *
+	 * @param formattedMsisdns formatted subscriber MSISDNs without a subscriber when last read
+	 * @return subscribers of the given MSISDNs
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public List<Subscriber> persistSubscribers(Collection<String> formattedMsisdns){
+
+		// another page may have created some since they were read
+		List<Subscriber> subscribers = new ArrayList<>(qm.getSubscribersByMsisdns(formattedMsisdns));
+		Set<String> missing = new LinkedHashSet<>(formattedMsisdns);
+		subscribers.forEach(subscriber -> missing.remove(subscriber.getMsisdn()));
+		
+		for (String formattedMsisdn : missing) {
+			Subscriber subscriber = newSubscriber(formattedMsisdn);
+			create(subscriber);
+			subscribers.add(subscriber);
+		}
+		entityManager.flush();
+		
+		return subscribers;
+	}
+	
+	private Subscriber newSubscriber(String formattedMsisdn){
+		
+		Subscriber subscriber = new Subscriber();
 		subscriber.setInDebt(false);
 		subscriber.setAutoRecharge(false);
-		subscriber.setMsisdn(qm.formatMisisdn(msisdn));
-
-		return (Subscriber) create(subscriber);
+		subscriber.setMsisdn(formattedMsisdn);
+		
+		return subscriber;
+	}
+	
+	private int stripe(String formattedMsisdn){
+		return (formattedMsisdn.hashCode() & Integer.MAX_VALUE) % subscriberLocks.length;
 	}
 	
 	/**
@@ -128,7 +289,22 @@ public class SingletonQueries {
 		if (subscriberAssessment != null)
 			return subscriberAssessment;
 
-		subscriberAssessment = new SubscriberAssessment();
+		return (SubscriberAssessment) create(initializeAssessment(subscriber, payType));
+	}
+	
+	/**
+	 * Initialize a fresh SubscriberAssessment without persisting it, 
+	 * for sinks that insert or update by subscriber.
+	 * 
+	 * @param subscriber
+	 * @param payType
+	 * @return {@link SubscriberAssessment}
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public SubscriberAssessment initializeAssessment(Subscriber subscriber, 
+			PayType payType){
+
+		SubscriberAssessment subscriberAssessment = new SubscriberAssessment();
 		subscriberAssessment.setAgeOnNetwork(0);
 		subscriberAssessment.setInDebt(subscriber.isInDebt());
 		subscriberAssessment.setLastProcessed(Timestamp.valueOf(LocalDateTime.now()));
@@ -141,7 +317,7 @@ public class SingletonQueries {
 		if(payType != null)
 			subscriberAssessment.setTariffPlan(payType);
 
-		return (SubscriberAssessment) create(subscriberAssessment);
+		return subscriberAssessment;
 	}
 
 }
\ No newline at end of file
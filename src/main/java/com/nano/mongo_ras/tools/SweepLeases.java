@@ -0,0 +1,358 @@
+package com.nano.mongo_ras.tools;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Distribute a sweep across nodes as leases on MSISDN ranges held in the ras_sweep_lease table.
+ * The first node to find the previous sweep finished splits the view into ras.lease.ranges ranges, 
+ * nodes then claim pending ranges with FOR UPDATE SKIP LOCKED so no two nodes hold the same range.
+ * Held leases are heartbeat every ras.lease.heartbeat.seconds, a lease not heartbeat for 
+ * ras.lease.expiry.seconds is reclaimed by another node and resumed from its last checkpoint.
+ * A range that fails is retried after ras.lease.retry.seconds, doubled with every attempt up to ras.lease.retry.max.seconds, 
+ * ranges with fewer failed attempts are claimed first and a range failing ras.lease.max.attempts times is left for the next sweep.
+ * The table is created by META-INF/sql/ras-indexes.sql, the heartbeat only starts once ras.sweep.engine lease 
+ * first asks for the current sweep.
+ * 
+ */
+@ApplicationScoped
+public class SweepLeases {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	// serializes sweep creation across nodes for the creating transaction only
+	private static final String SWEEP_LOCK = "SELECT pg_advisory_xact_lock(hashtext('ras_sweep_lease'))";
+	
+	private static final String CURRENT_SWEEP = "SELECT sweep_id, count(*) FILTER (WHERE status NOT IN ('DONE', 'FAILED')) FROM ras_sweep_lease " 
+			+ "WHERE sweep_id = (SELECT max(sweep_id) FROM ras_sweep_lease) GROUP BY sweep_id";
+	
+	private static final String INSERT_LEASE = "INSERT INTO ras_sweep_lease (sweep_id, range_no, first_msisdn, last_msisdn, " 
+			+ "checkpoint, status) VALUES (?, ?, ?, ?, ?, 'PENDING')";
+	
+	private static final String DELETE_SWEEPS = "DELETE FROM ras_sweep_lease WHERE sweep_id < ?";
+	
+	private static final String CLAIM_LEASE = "UPDATE ras_sweep_lease l SET status = 'LEASED', owner = ?, heartbeat = now() " 
+			+ "FROM (SELECT sweep_id, range_no FROM ras_sweep_lease WHERE sweep_id = ? AND ((status = 'PENDING' " 
+			+ "AND (next_attempt_at IS NULL OR next_attempt_at <= now())) " 
+			+ "OR (status = 'LEASED' AND heartbeat < now() - ? * interval '1 second')) ORDER BY attempts, range_no LIMIT 1 " 
+			+ "FOR UPDATE SKIP LOCKED) c WHERE l.sweep_id = c.sweep_id AND l.range_no = c.range_no " 
+			+ "RETURNING l.range_no, l.checkpoint, l.last_msisdn";
+	
+	private static final String COMMIT_LEASE = "UPDATE ras_sweep_lease SET checkpoint = ?, status = ?, heartbeat = now() " 
+			+ "WHERE sweep_id = ? AND range_no = ? AND owner = ? AND status = 'LEASED'";
+	
+	private static final String RELEASE_LEASE = "UPDATE ras_sweep_lease SET status = 'PENDING', owner = NULL " 
+			+ "WHERE sweep_id = ? AND range_no = ? AND owner = ? AND status = 'LEASED'";
+	
+	private static final String FAIL_LEASE = "UPDATE ras_sweep_lease SET status = CASE WHEN attempts + 1 >= ? THEN 'FAILED' ELSE 'PENDING' END, " 
+			+ "owner = NULL, attempts = attempts + 1, next_attempt_at = now() + least(? * power(2, attempts), ?) * interval '1 second' " 
+			+ "WHERE sweep_id = ? AND range_no = ? AND owner = ? AND status = 'LEASED'";
+	
+	private static final String RELEASE_LEASES = "UPDATE ras_sweep_lease SET status = 'PENDING', owner = NULL " 
+			+ "WHERE owner = ? AND status = 'LEASED'";
+	
+	private static final String HEARTBEAT = "UPDATE ras_sweep_lease SET heartbeat = now() WHERE owner = ? AND status = 'LEASED'";
+	
+	@Resource(lookup = "java:/jdbc/XADB")
+	private DataSource dataSource ;
+	
+	@Resource
+	private ManagedScheduledExecutorService managedScheduledExecutorService;
+	
+	@Inject
+	private QueryManager queryManager ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	private String owner ;
+	
+	private ScheduledFuture<?> heartbeat ;
+	
+	@PostConstruct
+	public void init(){
+		
+		owner = getNodeName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+	}
+	
+	@PreDestroy
+	public void close(){
+		
+		if (heartbeat == null)
+			return;
+		
+		heartbeat.cancel(false);
+		// hand leases back so other nodes need not wait for them to expire
+		execute(RELEASE_LEASES, owner);
+	}
+	
+	/**
+	 * Start heartbeating on first use, so nodes not sweeping by lease do not.
+	 */
+	private synchronized void start(){
+		
+		if (heartbeat != null)
+			return;
+		
+		int heartbeatInterval = props.getInt("ras.lease.heartbeat.seconds", 15);
+		heartbeat = managedScheduledExecutorService.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.SECONDS);
+		log.info("sweep lease owner:" + owner);
+	}
+	
+	/**
+	 * Fetch the sweep in progress, creating the next sweep if every range of the last one is done.
+	 * 
+	 * @return sweep id, 0 if no sweep could be created
+	 */
+	public long currentSweep(){
+		
+		start();
+		try (Connection connection = dataSource.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				try (Statement statement = connection.createStatement()) {
+					statement.execute(SWEEP_LOCK);
+				}
+				
+				long sweepId = 0;
+				long open = 0;
+				try (Statement statement = connection.createStatement(); 
+						ResultSet resultSet = statement.executeQuery(CURRENT_SWEEP)) {
+					if (resultSet.next()){
+						sweepId = resultSet.getLong(1);
+						open = resultSet.getLong(2);
+					}
+				}
+				
+				if (sweepId == 0 || open == 0)
+					sweepId = createSweep(connection, sweepId + 1);
+				
+				connection.commit();
+				return sweepId;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			log.error("Unable to fetch current sweep", e);
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Claim a pending or expired range of the sweep.
+	 * 
+	 * @param sweepId sweep id
+	 * @return {@link Lease} held by this node, null if no range is left to claim
+	 */
+	public Lease claim(long sweepId){
+		
+		try (Connection connection = dataSource.getConnection(); 
+				PreparedStatement statement = connection.prepareStatement(CLAIM_LEASE)) {
+			statement.setString(1, owner);
+			statement.setLong(2, sweepId);
+			statement.setInt(3, props.getInt("ras.lease.expiry.seconds", 120));
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (resultSet.next()){
+					Lease lease = new Lease(sweepId, resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3));
+					log.info("claimed " + lease);
+					return lease;
+				}
+			}
+		} catch (SQLException e) {
+			log.error("Unable to claim sweep lease", e);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Record every subscriber of the range up to an MSISDN as assessed and written.
+	 * 
+	 * @param lease held lease
+	 * @param msisdn last committed MSISDN
+	 * @return false if the lease was lost to another node
+	 */
+	public boolean commit(Lease lease, String msisdn){
+		return update(lease, msisdn, "LEASED");
+	}
+	
+	/**
+	 * Mark the range done.
+	 * 
+	 * @param lease held lease
+	 * @param msisdn last MSISDN of the range
+	 * @return false if the lease was lost to another node
+	 */
+	public boolean complete(Lease lease, String msisdn){
+		
+		log.info("completed " + lease);
+		return update(lease, msisdn, "DONE");
+	}
+	
+	/**
+	 * Hand the range back for any node to claim.
+	 * 
+	 * @param lease held lease
+	 */
+	public void release(Lease lease){
+		
+		log.info("released " + lease);
+		execute(RELEASE_LEASE, lease.getSweepId(), lease.getRangeNo(), owner);
+	}
+	
+	/**
+	 * Hand a range that failed back for a later attempt with backoff, 
+	 * or give it up for this sweep after ras.lease.max.attempts attempts.
+	 * 
+	 * @param lease held lease
+	 */
+	public void fail(Lease lease){
+		
+		log.warn("failed " + lease);
+		execute(FAIL_LEASE, props.getInt("ras.lease.max.attempts", 5), props.getInt("ras.lease.retry.seconds", 30), 
+				props.getInt("ras.lease.retry.max.seconds", 1800), lease.getSweepId(), lease.getRangeNo(), owner);
+	}
+	
+	private long createSweep(Connection connection, 
+			long sweepId) throws SQLException {
+		
+		List<String> bounds = queryManager.getMsisdnPartitionBounds(Math.max(1, props.getInt("ras.lease.ranges", 64)));
+		if (bounds.isEmpty())
+			return 0;
+		
+		try (PreparedStatement statement = connection.prepareStatement(INSERT_LEASE)) {
+			for (int i = 0; i < bounds.size(); i++) {
+				String firstMsisdn = i == 0 ? "" : bounds.get(i - 1);
+				statement.setLong(1, sweepId);
+				statement.setInt(2, i);
+				statement.setString(3, firstMsisdn);
+				// last range is left open for MSISDNs added while the sweep runs
+				statement.setString(4, i == bounds.size() - 1 ? null : bounds.get(i));
+				statement.setString(5, firstMsisdn);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+		
+		try (PreparedStatement statement = connection.prepareStatement(DELETE_SWEEPS)) {
+			statement.setLong(1, sweepId);
+			statement.executeUpdate();
+		}
+		log.info("created sweep:" + sweepId + " with " + bounds.size() + " ranges");
+		
+		return sweepId;
+	}
+	
+	private boolean update(Lease lease, 
+			String checkpoint, String status){
+		
+		lease.checkpoint = checkpoint;
+		boolean held = execute(COMMIT_LEASE, checkpoint, status, lease.getSweepId(), lease.getRangeNo(), owner) == 1;
+		if (!held)
+			log.warn("lost " + lease);
+		
+		return held;
+	}
+	
+	private void heartbeat(){
+		execute(HEARTBEAT, owner);
+	}
+	
+	private int execute(String sql, Object... parameters){
+		
+		try (Connection connection = dataSource.getConnection(); 
+				PreparedStatement statement = connection.prepareStatement(sql)) {
+			for (int i = 0; i < parameters.length; i++)
+				statement.setObject(i + 1, parameters[i]);
+			return statement.executeUpdate();
+		} catch (SQLException e) {
+			log.error("Unable to update sweep lease", e);
+		}
+		
+		return 0;
+	}
+	
+	private String getNodeName(){
+		
+		String nodeName = System.getProperty("jboss.node.name");
+		if (nodeName != null)
+			return nodeName;
+		
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "ras";
+		}
+	}
+	
+	/**
+	 * MSISDN range of a sweep held by this node, from checkpoint exclusive to lastMsisdn inclusive.
+	 * 
+	 */
+	public static class Lease {
+		
+		private final long sweepId ;
+		
+		private final int rangeNo ;
+		
+		private volatile String checkpoint ;
+		
+		private final String lastMsisdn ;
+		
+		Lease(long sweepId, int rangeNo, 
+				String checkpoint, String lastMsisdn) {
+			
+			this.sweepId = sweepId;
+			this.rangeNo = rangeNo;
+			this.checkpoint = checkpoint;
+			this.lastMsisdn = lastMsisdn;
+		}
+		
+		public long getSweepId() {
+			return sweepId;
+		}
+		
+		public int getRangeNo() {
+			return rangeNo;
+		}
+		
+		public String getCheckpoint() {
+			return checkpoint;
+		}
+		
+		/**
+		 * @return last MSISDN of the range, null for the open last range
+		 */
+		public String getLastMsisdn() {
+			return lastMsisdn;
+		}
+		
+		@Override
+		public String toString() {
+			return "lease sweep:" + sweepId + " range:" + rangeNo + " after:" + checkpoint 
+					+ " to:" + (lastMsisdn == null ? "end" : lastMsisdn);
+		}
+	}
+
+}
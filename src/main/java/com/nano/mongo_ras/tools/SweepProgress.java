@@ -0,0 +1,164 @@
+package com.nano.mongo_ras.tools;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.jboss.logging.Logger;
+
+import com.nano.jpa.entity.Settings;
+import com.nano.jpa.enums.SettingType;
+
+/**
+ * Progress of the sweep kept in {@link Settings} so a redeploy resumes a half-finished sweep.
+ * A sweep is RUNNING from {@link #begin()} until {@link #complete()}, the last committed MSISDN 
+ * only advances once every subscriber up to it was assessed and written.
+ * Settings are created with the {@link SettingType} named by ras.sweep.setting.type, the first type otherwise.
+ * 
+ */
+@ApplicationScoped
+public class SweepProgress {
+	
+	private Logger log = Logger.getLogger(getClass());
+	
+	public static final String SWEEP_ID = "RAS_SWEEP_ID";
+	public static final String SWEEP_STATUS = "RAS_SWEEP_STATUS";
+	public static final String SWEEP_STARTED = "RAS_SWEEP_STARTED";
+	public static final String SWEEP_COMPLETED = "RAS_SWEEP_COMPLETED";
+	public static final String SWEEP_LAST_MSISDN = "RAS_SWEEP_LAST_MSISDN";
+	public static final String SWEEP_ROWS = "RAS_SWEEP_ROWS";
+	public static final String SWEEP_SUBSCRIBERS = "RAS_SWEEP_SUBSCRIBERS";
+	
+	private static final String RUNNING = "RUNNING";
+	private static final String COMPLETE = "COMPLETE";
+	
+	@Inject
+	private QueryManager qm ;
+	
+	@Inject
+	private SingletonQueries sm ;
+	
+	@Inject
+	private PropertiesManager props ;
+	
+	private long sweepId ;
+	private String lastMsisdn = "" ;
+	private long rows ;
+	private long subscribers ;
+	
+	/**
+	 * Load the progress of the last sweep.
+	 * 
+	 * @return true if the last sweep was not completed and will be resumed
+	 */
+	public synchronized boolean load(){
+		
+		sweepId = Long.parseLong(get(SWEEP_ID, "0"));
+		boolean running = RUNNING.equals(get(SWEEP_STATUS, COMPLETE));
+		if (running){
+			lastMsisdn = get(SWEEP_LAST_MSISDN, "");
+			rows = Long.parseLong(get(SWEEP_ROWS, "0"));
+			subscribers = Long.parseLong(get(SWEEP_SUBSCRIBERS, "0"));
+			log.info("sweep:" + sweepId + " started " + get(SWEEP_STARTED, "") + " will resume after msisdn:" + lastMsisdn 
+					+ " (" + rows + " rows, " + subscribers + " subscribers)");
+		}
+		
+		return running;
+	}
+	
+	/**
+	 * Resume the sweep in progress or start a new one.
+	 * 
+	 * @return last committed MSISDN the sweep continues after, empty string for a new sweep
+	 */
+	public synchronized String begin(){
+		
+		if (RUNNING.equals(get(SWEEP_STATUS, COMPLETE))){
+			load();
+			return lastMsisdn;
+		}
+		
+		sweepId = Long.parseLong(get(SWEEP_ID, "0")) + 1;
+		lastMsisdn = "";
+		rows = 0;
+		subscribers = 0;
+		
+		save(SWEEP_ID, String.valueOf(sweepId));
+		save(SWEEP_STARTED, Timestamp.valueOf(LocalDateTime.now()).toString());
+		save(SWEEP_LAST_MSISDN, lastMsisdn);
+		save(SWEEP_ROWS, "0");
+		save(SWEEP_SUBSCRIBERS, "0");
+		save(SWEEP_STATUS, RUNNING);
+		log.info("sweep:" + sweepId + " started");
+		
+		return lastMsisdn;
+	}
+	
+	/**
+	 * Count a page handed out by the source.
+	 * 
+	 * @param page {@link MsisdnPage}
+	 */
+	public synchronized void count(MsisdnPage page){
+		
+		rows += page.getRows();
+		subscribers += page.getMsisdns().size();
+	}
+	
+	/**
+	 * Commit progress up to an MSISDN whose subscribers were all assessed and written.
+	 * 
+	 * @param msisdn last committed MSISDN
+	 */
+	public synchronized void commit(String msisdn){
+		
+		lastMsisdn = msisdn;
+		save(SWEEP_LAST_MSISDN, lastMsisdn);
+		save(SWEEP_ROWS, String.valueOf(rows));
+		save(SWEEP_SUBSCRIBERS, String.valueOf(subscribers));
+	}
+	
+	/**
+	 * Mark the sweep complete, the next {@link #begin()} starts a new sweep.
+	 */
+	public synchronized void complete(){
+		
+		save(SWEEP_ROWS, String.valueOf(rows));
+		save(SWEEP_SUBSCRIBERS, String.valueOf(subscribers));
+		save(SWEEP_COMPLETED, Timestamp.valueOf(LocalDateTime.now()).toString());
+		save(SWEEP_STATUS, COMPLETE);
+		log.info("sweep:" + sweepId + " complete, " + rows + " rows, " + subscribers + " subscribers");
+	}
+	
+	public synchronized long getSweepId() {
+		return sweepId;
+	}
+	
+	private String get(String name, String defaultValue){
+		
+		Settings settings = qm.getSettingsByName(name);
+		return settings == null || settings.getValue() == null ? defaultValue : settings.getValue();
+	}
+	
+	private void save(String name, String value){
+		
+		Settings settings = qm.createSettings(name, value, "RAS sweep progress", getSettingType());
+		if (!value.equals(settings.getValue())){
+			settings.setValue(value);
+			sm.updateWithNewTransaction(settings);
+		}
+	}
+	
+	private SettingType getSettingType(){
+		
+		String settingType = props.getProperty("ras.sweep.setting.type", "");
+		return Arrays.stream(SettingType.values())
+				.filter(e -> e.name().equalsIgnoreCase(settingType))
+				.findFirst()
+				.orElse(SettingType.values()[0]);
+	}
+
+}
@@ -0,0 +1,19 @@
+-- Tables and unique indexes backing the RAS writes, applied as a migration and never from the application.
+-- Run with psql outside a transaction block ahead of the deploy. CONCURRENTLY builds without blocking writes.
+-- Resolve duplicates first, a failed build leaves an INVALID index to drop before retrying.
+
+-- one assessment row per subscriber, guards fresh assessments persisted by two nodes at once
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS uk_subscriber_assessment_subscriber ON subscriber_assessment (subscriber);
+
+-- one subscriber per formatted MSISDN, makes a subscriber created by two nodes at once fail and be re-read
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS uk_subscriber_msisdn ON subscriber (msisdn);
+
+-- outcome and input fingerprints of the last assessment written per subscriber, read by the JDBC sink and the memo
+CREATE TABLE IF NOT EXISTS subscriber_assessment_fingerprint (subscriber bigint PRIMARY KEY, fingerprint bigint NOT NULL, 
+	input_fingerprint bigint, stable_until integer);
+
+-- MSISDN ranges of a sweep leased to nodes with ras.sweep.engine lease, failed ranges are retried with backoff
+CREATE TABLE IF NOT EXISTS ras_sweep_lease (sweep_id bigint NOT NULL, range_no integer NOT NULL, 
+	first_msisdn varchar NOT NULL, last_msisdn varchar, checkpoint varchar NOT NULL, status varchar(8) NOT NULL, 
+	owner varchar, heartbeat timestamp, attempts integer NOT NULL DEFAULT 0, next_attempt_at timestamp, 
+	PRIMARY KEY (sweep_id, range_no));